@@ -1,34 +1,119 @@
 import com.google.common.io.Resources;
 import dbcompiler.*;
+import dbcompiler.Compiler;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
 
-import java.io.IOException;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Main {
-    public static void main(String[] args) throws IOException {
-        String file = "src/main/resources/todo.graphql";
-        if (args.length >= 1) {
-            file = args[0];
+    /**
+     * Usage: Main [--metrics report.json] [--metrics-sink com.example.Sink] [--export-model model.lp|.mps|.pb]
+     *             [--solution solution.json] [--explain 3] [--sweep] [file.graphql | schema_dir ...]
+     *        Main --daemon 8080 [--cache-size 16]
+     *        Main --batch schema_dir|manifest.txt [--threads 8] [--solution report.json] [--cache-size 16]
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> files = new ArrayList<>();
+        String modelExportFile = null;
+        String solutionFile = null;
+        int daemonPort = -1;
+        int cacheSize = 16;
+        String batch = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean sweep = false;
+        int explain = -1;
+        Metrics metrics = new Metrics();
+        metrics.addSink(new Metrics.PrintSink());
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--metrics")) {
+                metrics.addSink(new Metrics.JsonFileSink(args[++i]));
+            } else if (args[i].equals("--metrics-sink")) {
+                metrics.addSink((Metrics.MetricsSink) Class.forName(args[++i]).newInstance());
+            } else if (args[i].equals("--export-model")) {
+                modelExportFile = args[++i];
+            } else if (args[i].equals("--solution")) {
+                solutionFile = args[++i];
+            } else if (args[i].equals("--daemon")) {
+                daemonPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--explain")) {
+                explain = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--sweep")) {
+                sweep = true;
+            } else if (args[i].equals("--cache-size")) {
+                cacheSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--batch")) {
+                batch = args[++i];
+            } else if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            files.add("src/main/resources/todo.graphql");
+        }
+        if (daemonPort >= 0) {
+            new CompilerServer(new Compiler(cacheSize), daemonPort).start();
+            return;
+        }
+        Compiler compiler = new Compiler(cacheSize);
+        if (batch != null) {
+            List<Batch.Result> results = new Batch(compiler, metrics, threads).run(Batch.list(batch));
+            Batch.print(results);
+            if (solutionFile != null) {
+                Batch.writeJson(results, solutionFile);
+            }
+            metrics.report();
+            if (metrics.get("batch.failed") + metrics.get("batch.unsolved") > 0) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        DomainModel model;
+        try (Metrics.Phase phase = metrics.phase("parse")) {
+            model = compiler.parse(Compiler.readDocuments(files), metrics);
+        }
+
+        if (sweep) {
+            List<Sweep.Result> results = new Sweep(model, metrics, Runtime.getRuntime().availableProcessors()).run();
+            Sweep.print(results);
+            if (solutionFile != null) {
+                Sweep.writeJson(results, solutionFile);
+            }
+            metrics.report();
+            return;
         }
-        Main main = new Main();
-        DomainModel model = main.parse(CharStreams.fromFileName(file));
 
-        LogicalPlan.Workload workload = new LogicalPlan(model).search();
-        Optimizer optimizer = new Optimizer(workload, model);
-        optimizer.findBestPlan();
+        LogicalPlan.Workload workload;
+        try (Metrics.Phase phase = metrics.phase("search")) {
+            workload = new LogicalPlan(model, metrics).search();
+        }
+        Optimizer optimizer = new Optimizer(workload, model, metrics);
+        optimizer.printPlan();
+        optimizer.setModelExportFile(modelExportFile);
+        if (explain >= 0) {
+            optimizer.setExplainAlternatives(explain);
+        }
+        Solution solution = optimizer.findBestPlan();
+        solution.print();
+        if (explain >= 0) {
+            solution.printExplain();
+        }
+        if (solutionFile != null) {
+            solution.writeJson(solutionFile);
+        }
+        metrics.report();
     }
 
     public DomainModel parse(CharStream charStream) {
-        GraphQLLexer lexer = new GraphQLLexer(charStream);
-        CommonTokenStream tokenStream = new CommonTokenStream(lexer);
-        GraphQLParser parser = new GraphQLParser(tokenStream);
-        DomainParser visitor = new DomainParser();
+        return parse(charStream, new Metrics());
+    }
 
-        return visitor.visit(parser.document());
+    public DomainModel parse(CharStream charStream, Metrics metrics) {
+        return Compiler.parse(charStream, metrics);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,192 @@
+/*
+ *  Copyright (C) 2020 Daniel Henneberger
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dbcompiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles many schemas in one jvm on a bounded pool. The schemas share one {@link Compiler}, so a document or
+ * schema seen before is not parsed or enumerated again, and a failing schema is reported without stopping the others.
+ */
+public class Batch {
+    private final Compiler compiler;
+    private final Metrics metrics;
+    private final int threads;
+
+    public Batch(Compiler compiler, Metrics metrics, int threads) {
+        this.compiler = compiler;
+        this.metrics = metrics;
+        this.threads = threads;
+    }
+
+    /**
+     * A schema and the files it is split across
+     */
+    public static class Schema {
+        public final String name;
+        public final List<String> files;
+
+        public Schema(String name, List<String> files) {
+            this.name = name;
+            this.files = files;
+        }
+    }
+
+    public static class Result {
+        public final Schema schema;
+        public final double wallMs;
+        /* null when the compile failed */
+        public final Solution solution;
+        public final Metrics metrics;
+        public final String error;
+
+        public Result(Schema schema, double wallMs, Solution solution, Metrics metrics, String error) {
+            this.schema = schema;
+            this.wallMs = wallMs;
+            this.solution = solution;
+            this.metrics = metrics;
+            this.error = error;
+        }
+
+        public String getStatus() {
+            return solution == null ? "ERROR" : solution.status;
+        }
+    }
+
+    /**
+     * The schemas of a directory, each .graphql file or subdirectory being one schema, or of a manifest listing one
+     * file or directory per line. Blank lines and lines starting with # are skipped, and relative paths are resolved
+     * against the manifest's directory.
+     */
+    public static List<Schema> list(String path) throws IOException {
+        Path root = Paths.get(path);
+        List<Path> paths = new ArrayList<>();
+        if (Files.isDirectory(root)) {
+            try (Stream<Path> children = Files.list(root)) {
+                paths.addAll(children
+                        .filter(p -> Files.isDirectory(p) || p.toString().endsWith(".graphql"))
+                        .sorted()
+                        .collect(Collectors.toList()));
+            }
+        } else {
+            Path base = root.toAbsolutePath().getParent();
+            for (String line : Files.readAllLines(root, StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                paths.add(base.resolve(line));
+            }
+        }
+        List<Schema> schemas = new ArrayList<>();
+        for (Path schema : paths) {
+            schemas.add(new Schema(root.toAbsolutePath().getParent().relativize(schema.toAbsolutePath()).toString(),
+                    Collections.singletonList(schema.toString())));
+        }
+        return schemas;
+    }
+
+    public List<Result> run(List<Schema> schemas) {
+        metrics.set("batch.schemas", schemas.size());
+        List<Result> results = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (Metrics.Phase phase = metrics.phase("batch")) {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Schema schema : schemas) {
+                futures.add(executor.submit(phase.onWorker(() -> compile(schema))));
+            }
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        metrics.set("batch.failed", results.stream().filter(r -> r.solution == null).count());
+        metrics.set("batch.unsolved", results.stream()
+                .filter(r -> r.solution != null && !r.solution.isSolved())
+                .count());
+        return results;
+    }
+
+    private Result compile(Schema schema) {
+        Metrics schemaMetrics = new Metrics();
+        long start = System.nanoTime();
+        try {
+            Solution solution = compiler.compile(Compiler.readDocuments(schema.files), schemaMetrics);
+            return new Result(schema, (System.nanoTime() - start) / 1e6, solution, schemaMetrics, null);
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            String error = e.getMessage() != null ? e.getMessage() : e.toString();
+            return new Result(schema, (System.nanoTime() - start) / 1e6, null, schemaMetrics, error);
+        }
+    }
+
+    /**
+     * One line per schema with its status, objective and compile time, and the error of each failed schema
+     */
+    public static void print(List<Result> results) {
+        System.out.println("\nBatch: ");
+        for (Result result : results) {
+            String objective = result.solution != null && result.solution.isSolved() ?
+                    String.format("%14.1f", result.solution.objective) : String.format("%14s", "-");
+            System.out.println(String.format("  %-10s %s %10.1f ms  %s", result.getStatus(), objective, result.wallMs,
+                    result.schema.name));
+            if (result.error != null) {
+                System.out.println("      " + result.error);
+            }
+        }
+    }
+
+    public static void writeJson(List<Result> results, String file) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            JsonWriter json = new JsonWriter(writer);
+            json.beginArray();
+            for (Result result : results) {
+                json.beginObject();
+                json.name("schema").value(result.schema.name);
+                json.name("status").value(result.getStatus());
+                json.name("wall_ms").value(result.wallMs);
+                if (result.error != null) {
+                    json.name("error").value(result.error);
+                }
+                if (result.solution != null) {
+                    json.name("solution");
+                    result.solution.writeJson(json);
+                }
+                json.name("metrics");
+                result.metrics.writeJson(json);
+                json.endObject();
+            }
+            json.endArray();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *  Copyright (C) 2020 Daniel Henneberger
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dbcompiler;
+
+import java.util.*;
+
+import static dbcompiler.LogicalPlan.QPlan;
+
+/**
+ * Generates the candidates worth solving over. Starting from each query's cheapest candidates and its fastest, the
+ * LP relaxation over the candidates generated so far is solved, and every other candidate is priced against its
+ * dual prices. Candidates are priced per table, since a table often only pays off by serving several queries: the
+ * table's reduced cost plus that of its best candidate for each query, where negative. The tables with the most
+ * negative reduced cost are added with those candidates and the relaxation solved again, until none is left. The
+ * solver only ever holds the generated candidates, so its size follows the useful candidates rather than the whole
+ * space.
+ */
+public class ColumnGenerator {
+    /* Reduced costs above this are rounding */
+    private static final double EPSILON = 1e-6;
+
+    private final LogicalPlan.Workload workload;
+    private final DomainModel model;
+    private final Metrics metrics;
+    private final Scenario scenario;
+
+    public ColumnGenerator(LogicalPlan.Workload workload, DomainModel model, Metrics metrics, Scenario scenario) {
+        this.workload = workload;
+        this.model = model;
+        this.metrics = metrics;
+        this.scenario = scenario;
+    }
+
+    /**
+     * The workload restricted to the generated candidates
+     */
+    public LogicalPlan.Workload generate() {
+        DomainModel.ColumnGeneration config = model.columnGeneration;
+        List<List<QPlan>> columns = new ArrayList<>();
+        List<Set<QPlan>> generated = new ArrayList<>();
+        for (LogicalPlan.QueryPlan queryPlan : workload.plans) {
+            List<QPlan> seed = seed(queryPlan.plans, config.seed);
+            columns.add(seed);
+            Set<QPlan> members = Collections.newSetFromMap(new IdentityHashMap<>());
+            members.addAll(seed);
+            generated.add(members);
+        }
+
+        int iterations = 0;
+        try (Metrics.Phase phase = metrics.phase("optimize.colgen")) {
+            while (iterations < config.max_iterations) {
+                iterations++;
+                LogicalPlan.Workload restricted = workload.withPlans(columns);
+                Optimizer relaxation = new Optimizer(restricted, model, new Metrics(), scenario);
+                if (!relaxation.solveRelaxation()) {
+                    metrics.increment("colgen.relaxation_failed");
+                    break;
+                }
+                /* Candidates are equal by their table's keys and columns */
+                Map<LogicalPlan.Index, Column> tables = new LinkedHashMap<>();
+                for (int i = 0; i < workload.plans.size(); i++) {
+                    for (QPlan plan : workload.plans.get(i).plans) {
+                        if (generated.get(i).contains(plan)) continue;
+                        double reducedCost = relaxation.getReducedCost(restricted.plans.get(i), plan.index);
+                        if (reducedCost >= -EPSILON) continue;
+                        tables.computeIfAbsent(plan.index, k -> new Column(relaxation.getTableReducedCost(k)))
+                                .add(i, plan, reducedCost);
+                    }
+                }
+                relaxation.deleteRelaxation();
+                List<Column> priced = new ArrayList<>();
+                for (Column column : tables.values()) {
+                    if (column.getReducedCost() < -EPSILON) {
+                        priced.add(column);
+                    }
+                }
+                if (priced.isEmpty()) break;
+
+                priced.sort(Comparator.comparingDouble(Column::getReducedCost));
+                for (Column column : priced.subList(0, Math.min(config.batch, priced.size()))) {
+                    for (Map.Entry<Integer, QPlan> entry : column.plans.entrySet()) {
+                        columns.get(entry.getKey()).add(entry.getValue());
+                        generated.get(entry.getKey()).add(entry.getValue());
+                    }
+                }
+            }
+        }
+        metrics.set("colgen.iterations", iterations);
+        metrics.set("colgen.columns", columns.stream().mapToLong(List::size).sum());
+        return workload.withPlans(columns);
+    }
+
+    /**
+     * The cheapest candidates to read, and the fastest so the latency SLA can be met from the start
+     */
+    private static List<QPlan> seed(List<QPlan> plans, int size) {
+        if (plans.isEmpty()) return new ArrayList<>();
+        List<QPlan> sorted = new ArrayList<>(plans);
+        sorted.sort(Comparator.comparingDouble(p -> p.index.getNodeCost()));
+        List<QPlan> seed = new ArrayList<>(sorted.subList(0, Math.min(size, sorted.size())));
+        QPlan fastest = Collections.min(plans, Comparator.comparingDouble(p -> p.index.getLatencyMs()));
+        if (!seed.contains(fastest)) {
+            seed.add(fastest);
+        }
+        return seed;
+    }
+
+    /**
+     * A table and its best candidate for each query plan, by the plan's position in the workload
+     */
+    private static class Column {
+        final double tableReducedCost;
+        final Map<Integer, QPlan> plans = new LinkedHashMap<>();
+        final Map<Integer, Double> reducedCosts = new HashMap<>();
+
+        Column(double tableReducedCost) {
+            this.tableReducedCost = tableReducedCost;
+        }
+
+        void add(int plan, QPlan qplan, double reducedCost) {
+            if (reducedCost < reducedCosts.getOrDefault(plan, 0.0)) {
+                plans.put(plan, qplan);
+                reducedCosts.put(plan, reducedCost);
+            }
+        }
+
+        double getReducedCost() {
+            double reducedCost = tableReducedCost;
+            for (double candidate : reducedCosts.values()) {
+                reducedCost += candidate;
+            }
+            return reducedCost;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *  Copyright (C) 2020 Daniel Henneberger
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dbcompiler;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles schema documents through parse, search and solve, keeping each stage's result in an LRU cache keyed by
+ * the stage's own inputs: the model by the documents, the candidates by the definitions they are enumerated from,
+ * and the solution by those definitions and the settings only the solve reads. An edit re-runs only the stages whose
+ * inputs changed, e.g. a changed SLA re-solves the candidates already enumerated.
+ */
+public class Compiler {
+    /* Deeply nested documents recurse past the default stack in prediction and in the visitor */
+    public static final long STACK_SIZE = 64L * 1024 * 1024;
+    /* Directives only the solve reads; \@memory also adds cache candidates, so only its budget is a solve setting */
+    private static final Set<String> SOLVE_DIRECTIVES = ImmutableSet.of("sla", "profiles", "memory", "storage",
+            "column_generation", "sweep");
+
+    private final Cache<String, GraphQLParser.DocumentContext> documents;
+    private final Cache<String, DomainModel> models;
+    private final Cache<String, Search> workloads;
+    private final Cache<String, Solution> solutions;
+    private final ExecutorService parsers;
+
+    /**
+     * Models and workloads hold the candidate space and are kept for {@code cacheSize} schemas, the much smaller
+     * solutions for four times as many. Parse trees are kept per file, for sixteen times as many files.
+     */
+    public Compiler(int cacheSize) {
+        this.documents = CacheBuilder.newBuilder().maximumSize(cacheSize * 16L).build();
+        this.models = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+        this.workloads = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+        this.solutions = CacheBuilder.newBuilder().maximumSize(cacheSize * 4L).build();
+        this.parsers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(null, r, "parser", STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Solution compile(String document, Metrics metrics) {
+        return compile(Collections.singletonList(document), metrics);
+    }
+
+    /**
+     * Candidates and the model they were enumerated from. Candidates refer to the entities, queries and mutations
+     * of that model, so another version of the schema is solved over that model with its own solve settings.
+     */
+    private static class Search {
+        private final DomainModel model;
+        private final LogicalPlan.Workload workload;
+
+        private Search(DomainModel model, LogicalPlan.Workload workload) {
+            this.model = model;
+            this.workload = workload;
+        }
+    }
+
+    /**
+     * Compiles a schema split across documents. Compiles may run concurrently: the caches are thread safe, and each
+     * solve keeps its variables to itself, so a shared workload is only read.
+     */
+    public Solution compile(List<String> documents, Metrics metrics) {
+        List<GraphQLParser.DocumentContext> trees = parseTrees(documents, metrics);
+        StringBuilder definitions = new StringBuilder();
+        StringBuilder settings = new StringBuilder();
+        for (int i = 0; i < trees.size(); i++) {
+            splitSettings(trees.get(i), String.valueOf(i), definitions, settings);
+        }
+        String workloadKey = hash(definitions.toString());
+        String solutionKey = hash(workloadKey + "\n" + settings);
+
+        Solution solution = solutions.getIfPresent(solutionKey);
+        if (solution != null) {
+            metrics.increment("cache.solution.hit");
+            return solution;
+        }
+
+        String modelKey = hash(documents);
+        DomainModel model = models.getIfPresent(modelKey);
+        if (model == null) {
+            try (Metrics.Phase phase = metrics.phase("parse")) {
+                model = link(trees, metrics);
+            }
+            models.put(modelKey, model);
+        } else {
+            metrics.increment("cache.model.hit");
+        }
+
+        Search search = workloads.getIfPresent(workloadKey);
+        if (search == null) {
+            /* Latency SLAs are solve settings: the solve enforces them instead of the enumeration */
+            try (Metrics.Phase phase = metrics.phase("search")) {
+                search = new Search(model, new LogicalPlan(model, metrics)
+                        .search(Collections.singletonList(Scenario.unboundedLatency(model))));
+            }
+            workloads.put(workloadKey, search);
+        } else {
+            metrics.increment("cache.workload.hit");
+        }
+
+        solution = new Optimizer(search.workload, search.model.withSolveSettings(model), metrics, Scenario.of(model))
+                .findBestPlan();
+        if (solution.isSolved()) {
+            solutions.put(solutionKey, solution);
+        }
+        return solution;
+    }
+
+    /**
+     * Parses each document in parallel, reusing the parse tree of any document parsed before, and links them into
+     * one model
+     */
+    public DomainModel parse(List<String> documents, Metrics metrics) {
+        return link(parseTrees(documents, metrics), metrics);
+    }
+
+    private List<GraphQLParser.DocumentContext> parseTrees(List<String> documents, Metrics metrics) {
+        List<GraphQLParser.DocumentContext> trees = new ArrayList<>();
+        try (Metrics.Phase phase = metrics.phase("parse.antlr")) {
+            List<Future<GraphQLParser.DocumentContext>> futures = new ArrayList<>();
+            for (String document : documents) {
+                futures.add(parsers.submit(phase.onWorker(() -> getDocument(document, metrics))));
+            }
+            for (Future<GraphQLParser.DocumentContext> future : futures) {
+                trees.add(getResult(future));
+            }
+        }
+        return trees;
+    }
+
+    private static DomainModel link(List<GraphQLParser.DocumentContext> trees, Metrics metrics) {
+        try (Metrics.Phase phase = metrics.phase("parse.domain")) {
+            return runWithLargeStack(phase.onWorker(() -> new DomainParser(metrics).link(trees)));
+        }
+    }
+
+    /**
+     * Appends the tokens of the tree to the definitions, except the directives only the solve reads, which are
+     * appended to the settings with their path in the trees, e.g. 0.3.0.2, so moving a directive to another
+     * definition changes the settings
+     */
+    private static void splitSettings(ParseTree tree, String path, StringBuilder definitions, StringBuilder settings) {
+        if (tree instanceof GraphQLParser.DirectiveContext) {
+            String name = ((GraphQLParser.DirectiveContext) tree).name().getText();
+            if (SOLVE_DIRECTIVES.contains(name)) {
+                if (name.equals("memory")) {
+                    definitions.append("@memory ");
+                }
+                settings.append(path).append(' ').append(tree.getText()).append('\n');
+                return;
+            }
+        }
+        if (tree instanceof TerminalNode) {
+            definitions.append(tree.getText()).append(' ');
+            return;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            splitSettings(tree.getChild(i), path + "." + i, definitions, settings);
+        }
+    }
+
+    private GraphQLParser.DocumentContext getDocument(String document, Metrics metrics) {
+        String hash = hash(document);
+        GraphQLParser.DocumentContext tree = documents.getIfPresent(hash);
+        if (tree != null) {
+            metrics.increment("cache.document.hit");
+            return tree;
+        }
+        tree = parseTree(CharStreams.fromString(document), metrics);
+        documents.put(hash, tree);
+        return tree;
+    }
+
+    public static DomainModel parse(CharStream charStream, Metrics metrics) {
+        GraphQLParser.DocumentContext document;
+        try (Metrics.Phase phase = metrics.phase("parse.antlr")) {
+            document = runWithLargeStack(phase.onWorker(() -> parseTree(charStream, metrics)));
+        }
+        try (Metrics.Phase phase = metrics.phase("parse.domain")) {
+            return runWithLargeStack(phase.onWorker(() -> new DomainParser(metrics).visit(document)));
+        }
+    }
+
+    private static GraphQLParser.DocumentContext parseTree(CharStream charStream, Metrics metrics) {
+        CommonTokenStream tokenStream = new CommonTokenStream(new GraphQLLexer(charStream));
+        GraphQLParser.DocumentContext document = parseDocument(tokenStream, metrics);
+        metrics.increment("parse.tokens", tokenStream.size());
+        return document;
+    }
+
+    /**
+     * Parses with SLL prediction first, which is enough for nearly every document, and only re-parses with full LL
+     * when SLL reports a syntax error. The DFA built during prediction is static in the generated parser and is
+     * shared by every parse in the jvm.
+     */
+    public static GraphQLParser.DocumentContext parseDocument(CommonTokenStream tokenStream, Metrics metrics) {
+        GraphQLParser parser = new GraphQLParser(tokenStream);
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        try {
+            return parser.document();
+        } catch (ParseCancellationException e) {
+            metrics.increment("parse.ll_fallback");
+            tokenStream.seek(0);
+            parser.reset();
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            return parser.document();
+        }
+    }
+
+    /**
+     * Runs a task on a new thread with a {@link #STACK_SIZE} stack
+     */
+    public static <T> T runWithLargeStack(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        Thread thread = new Thread(null, future, "parser", STACK_SIZE);
+        thread.start();
+        return getResult(future);
+    }
+
+    private static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Reads each file, and every .graphql file of each directory in name order
+     */
+    public static List<String> readDocuments(List<String> files) throws IOException {
+        List<String> documents = new ArrayList<>();
+        for (String file : files) {
+            Path path = Paths.get(file);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> children = Files.list(path)) {
+                    for (Path child : children.filter(p -> p.toString().endsWith(".graphql")).sorted()
+                            .collect(Collectors.toList())) {
+                        documents.add(new String(Files.readAllBytes(child), StandardCharsets.UTF_8));
+                    }
+                }
+            } else {
+                documents.add(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+            }
+        }
+        return documents;
+    }
+
+    public static String hash(String document) {
+        return Hashing.sha256().hashString(document, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Hash of the hash of each document, in order
+     */
+    public static String hash(List<String> documents) {
+        if (documents.size() == 1) return hash(documents.get(0));
+        StringBuilder hashes = new StringBuilder();
+        for (String document : documents) {
+            hashes.append(hash(document)).append('\n');
+        }
+        return hash(hashes.toString());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright (C) 2020 Daniel Henneberger
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dbcompiler;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a compiler resident behind a local http endpoint:
+ *
+ * curl --data-binary @src/main/resources/todo.graphql http://localhost:8080/compile
+ *
+ * Requests are handled on a single thread with a large stack, so deep documents parse without -Xss.
+ */
+public class CompilerServer {
+    private final Compiler compiler;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public CompilerServer(Compiler compiler, int port) throws IOException {
+        this.compiler = compiler;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newSingleThreadExecutor(r -> new Thread(null, r, "compiler", Compiler.STACK_SIZE));
+        server.createContext("/compile", this::handleCompile);
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Compiler listening on " + server.getAddress());
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /**
+     * POST a schema document, responds with the solution and the metrics of this compile
+     */
+    private void handleCompile(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, error("POST a schema document"));
+                return;
+            }
+            String document = new String(ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            Metrics metrics = new Metrics();
+            Solution solution;
+            try (Metrics.Phase phase = metrics.phase("compile")) {
+                solution = compiler.compile(document, metrics);
+            }
+
+            StringWriter writer = new StringWriter();
+            JsonWriter json = new JsonWriter(writer);
+            json.beginObject();
+            json.name("solution");
+            solution.writeJson(json);
+            json.name("metrics");
+            metrics.writeJson(json);
+            json.endObject();
+            respond(exchange, 200, writer.toString());
+        } catch (RuntimeException e) {
+            respond(exchange, 400, error(e.getMessage() != null ? e.getMessage() : e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + JsonWriter.quote(message) + "}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ *  Copyright (C) 2020 Daniel Henneberger
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dbcompiler;
+
+import static dbcompiler.LogicalPlan.Index;
+import static dbcompiler.LogicalPlan.row_scan_cost;
+
+/**
+ * Prices what a table does on the store it is deployed to: the rows it reads, the rows it writes and the bytes it
+ * keeps. Costs are in units of a row scan. Selected with
+ * extend schema
+ * \@store(engine: "wide_column", write_row_cost: 0.25)
+ */
+public interface CostModel {
+    /**
+     * Cost of one execution of the index's query
+     */
+    double getReadCost(Index index);
+
+    /**
+     * Cost of reading a single row of {@code rowBytes} by primary key
+     */
+    double getLookupCost(double rowBytes);
+
+    /**
+     * Cost of writing {@code rows} rows of {@code rowBytes} to one replica
+     */
+    double getWriteCost(double rows, double rowBytes);
+
+    /**
+     * Bytes on disk for the table's logical bytes
+     */
+    double getStoredBytes(double bytes);
+
+    /**
+     * Largest partition read in one request, larger partitions are split
+     */
+    double getMaxPartitionBytes();
+
+    /**
+     * A b-tree store: a query reads the larger of the rows it filters and sorts, and writes and lookups cost a row
+     */
+    class Generic implements CostModel {
+        @Override
+        public double getReadCost(Index index) {
+            return index.getRowScanCost() + index.getFetchRows() * row_scan_cost +
+                    (index.getRequests() + (index.fetch ? 1 : 0)) * index.model.cluster.request_cost;
+        }
+
+        @Override
+        public double getLookupCost(double rowBytes) {
+            return row_scan_cost;
+        }
+
+        @Override
+        public double getWriteCost(double rows, double rowBytes) {
+            return rows * row_scan_cost;
+        }
+
+        @Override
+        public double getStoredBytes(double bytes) {
+            return bytes;
+        }
+
+        @Override
+        public double getMaxPartitionBytes() {
+            return Double.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return "generic";
+        }
+    }
+
+    /**
+     * A partitioned wide-column store. Writes append to a log and are cheap; sorting outside the clustering key
+     * happens on the coordinator; a batched fetch by primary key is one request per partition; compaction needs
+     * headroom on disk and partitions are kept small.
+     */
+    class WideColumn implements CostModel {
+        public double write_row_cost = 0.25;
+        /* A row sorted on the coordinator rather than read in clustering order */
+        public double sort_row_cost = 2;
+        public double space_amplification = 1.5;
+        public double max_partition_bytes = 100 * 1024 * 1024;
+
+        @Override
+        public double getReadCost(Index index) {
+            double requestCost = index.model.cluster.request_cost;
+            return Math.max(index.getFilterRows(), index.getSortRows() * sort_row_cost) * row_scan_cost +
+                    index.getFetchRows() * (row_scan_cost + requestCost) +
+                    index.getRequests() * requestCost;
+        }
+
+        @Override
+        public double getLookupCost(double rowBytes) {
+            return row_scan_cost;
+        }
+
+        @Override
+        public double getWriteCost(double rows, double rowBytes) {
+            return rows * write_row_cost;
+        }
+
+        @Override
+        public double getStoredBytes(double bytes) {
+            return bytes * space_amplification;
+        }
+
+        @Override
+        public double getMaxPartitionBytes() {
+            return max_partition_bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "wide_column";
+        }
+    }
+
+    /**
+     * A key-value service billed in read and write units. Each request reads whole units of bytes, each item
+     * fetched by key costs at least one unit, and a write costs a unit per started {@code write_unit_bytes}.
+     */
+    class KeyValue implements CostModel {
+        public double read_unit_bytes = 4096;
+        public double write_unit_bytes = 1024;
+        public double read_unit_cost = 1;
+        public double write_unit_cost = 5;
+        public double max_partition_bytes = 10L * 1024 * 1024 * 1024;
+
+        @Override
+        public double getReadCost(Index index) {
+            double bytes = Math.max(index.getFilterRows(), index.getSortRows()) * index.getRowBytes();
+            double units = Math.max(index.getRequests(), Math.ceil(bytes / read_unit_bytes));
+            return units * read_unit_cost +
+                    index.getFetchRows() * getLookupCost(index.rootEntity.getRowBytes()) +
+                    (index.getRequests() + (index.fetch ? 1 : 0)) * index.model.cluster.request_cost;
+        }
+
+        @Override
+        public double getLookupCost(double rowBytes) {
+            return Math.max(1, Math.ceil(rowBytes / read_unit_bytes)) * read_unit_cost;
+        }
+
+        @Override
+        public double getWriteCost(double rows, double rowBytes) {
+            return rows * Math.max(1, Math.ceil(rowBytes / write_unit_bytes)) * write_unit_cost;
+        }
+
+        @Override
+        public double getStoredBytes(double bytes) {
+            return bytes;
+        }
+
+        @Override
+        public double getMaxPartitionBytes() {
+            return max_partition_bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "key_value";
+        }
+    }
+
+    /**
+     * An embedded log-structured merge tree. There is no network; a range scan merges a sorted run from every
+     * level, a lookup probes the levels its bloom filters cannot rule out, and every row written is rewritten by
+     * compaction once per level.
+     */
+    class Lsm implements CostModel {
+        /* Sorted runs merged by a seek */
+        public double seek_cost = 4;
+        /* Levels probed by a point lookup */
+        public double read_amplification = 1.2;
+        public double write_amplification = 10;
+        /* A row rewritten sequentially by compaction */
+        public double compaction_row_cost = 0.1;
+        public double space_amplification = 1.1;
+
+        @Override
+        public double getReadCost(Index index) {
+            return index.getRequests() * seek_cost * row_scan_cost +
+                    Math.max(index.getFilterRows(), index.getSortRows()) * row_scan_cost +
+                    index.getFetchRows() * getLookupCost(index.rootEntity.getRowBytes());
+        }
+
+        @Override
+        public double getLookupCost(double rowBytes) {
+            return read_amplification * row_scan_cost;
+        }
+
+        @Override
+        public double getWriteCost(double rows, double rowBytes) {
+            return rows * (1 + write_amplification * compaction_row_cost) * row_scan_cost;
+        }
+
+        @Override
+        public double getStoredBytes(double bytes) {
+            return bytes * space_amplification;
+        }
+
+        @Override
+        public double getMaxPartitionBytes() {
+            return Double.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return "lsm";
+        }
+    }
+}
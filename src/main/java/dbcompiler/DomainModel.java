@@ -27,6 +27,40 @@ public class DomainModel {
     public Map<String, QueryDefinition> queryDefinitionMap = new HashMap<>();
     public List<Query> queries = new ArrayList<>();
     public List<Mutation> mutations = new ArrayList<>();
+    public DeployedLayout deployed;
+    public Cluster cluster = new Cluster();
+    public PartitionLimits partitions = new PartitionLimits();
+    public Memory memory;
+    public Storage storage = new Storage();
+    public Latency latency = new Latency();
+    public CostModel costModel = new CostModel.Generic();
+    public List<SweepAxis> sweep = new ArrayList<>();
+    public Profiles profiles;
+    public ColumnGeneration columnGeneration;
+
+    /**
+     * This model's definitions with the settings only the solve reads taken from another version of the schema:
+     * the memory budget, storage cost, profiles, column generation and sweep. SLAs are applied by name with
+     * {@link Scenario#of(DomainModel)}.
+     */
+    public DomainModel withSolveSettings(DomainModel settings) {
+        DomainModel model = new DomainModel();
+        model.entities = entities;
+        model.queryDefinitionMap = queryDefinitionMap;
+        model.queries = queries;
+        model.mutations = mutations;
+        model.deployed = deployed;
+        model.cluster = cluster;
+        model.partitions = partitions;
+        model.memory = settings.memory;
+        model.storage = settings.storage;
+        model.latency = latency;
+        model.costModel = costModel;
+        model.sweep = settings.sweep;
+        model.profiles = settings.profiles;
+        model.columnGeneration = settings.columnGeneration;
+        return model;
+    }
 
     /**
      * query Name(arguments)
@@ -103,6 +137,19 @@ public class DomainModel {
         public Map<String, Field> fieldMap;
         public EntitySizeDirective size;
         public Map<Set<FieldPath>, Selectivity> selectivityMap;
+        /* null unless the entity is append-only with a retention */
+        public TimeSeries timeSeries;
+
+        /**
+         * Bytes of a single row stored by ID
+         */
+        public int getRowBytes() {
+            int bytes = 0;
+            for (Field field : fieldMap.values()) {
+                bytes += field.bytes;
+            }
+            return bytes;
+        }
 
         @AllArgsConstructor
         @ToString
@@ -110,6 +157,22 @@ public class DomainModel {
             public String name;
             public TypeDef typeDef;
             public boolean immutable;
+            public int bytes;
+            /* \@multiplicity(max: n) of a list relationship, 0 if not given */
+            public int multiplicity;
+            /* \@relation(field: "user"), the inverse field on the related entity, null if not given */
+            public String relation;
+
+            public Entity getEntity() {
+                return Entity.this;
+            }
+
+            /**
+             * The declared inverse of a relationship, e.g. Todo.user for User.todos, or null
+             */
+            public Field getInverse() {
+                return relation == null ? null : typeDef.getEntity().fieldMap.get(relation);
+            }
         }
 
         public class EntitySizeDirective {
@@ -127,10 +190,14 @@ public class DomainModel {
         public MutationType mutationType;
         public List<QueryDefinition.SqlClause.Conjunction> clause;
 
+        /**
+         * \@sla(max_tables: 1, throughput_per_second: 10)
+         */
         @AllArgsConstructor
         @ToString
         public class MutationSla {
             public int max_tables;
+            public int throughput_per_second;
         }
     }
 
@@ -148,6 +215,28 @@ public class DomainModel {
             return model.entities.get(typeName);
         }
 
+        /**
+         * Bytes stored on a row when not given by \@size(bytes: n). Relationships store the ID.
+         */
+        public int getDefaultBytes() {
+            if (multiplicity == Multiplicity.LIST) return 0;
+            switch (typeName) {
+                case "boolean":
+                case "Boolean":
+                    return 1;
+                case "int":
+                case "Int":
+                    return 4;
+                case "float":
+                case "Float":
+                    return 8;
+                case "String":
+                    return 64;
+                default:
+                    return 16; //ID or relationship
+            }
+        }
+
         public enum Multiplicity {
             SINGLE, LIST
         }
@@ -171,6 +260,7 @@ public class DomainModel {
             public Entity rootEntity;
             public List<Conjunction> conjunctions;
             public List<OrderBy> orders;
+            public Aggregate aggregate;
             public String toStr;
 
             public static class Conjunction {
@@ -193,6 +283,28 @@ public class DomainModel {
             }
         }
 
+        /**
+         * \@sql(from: "Todo", where: "user.username = $username", aggregate: {function: "count"})
+         * \@sql(where: "...", aggregate: {function: "max", field: "priority"})
+         * \@sql(where: "...", order: [...], aggregate: {function: "top", limit: 10})
+         */
+        @AllArgsConstructor
+        @EqualsAndHashCode
+        public static class Aggregate {
+            public AggregateFunction function;
+            public FieldPath field;
+            public int limit;
+
+            @Override
+            public String toString() {
+                return function.name().toLowerCase() + (field != null ? "(" + field + ")" : "") +
+                        (function == AggregateFunction.TOP ? limit : "");
+            }
+        }
+
+        public enum AggregateFunction {
+            COUNT, SUM, MIN, MAX, TOP
+        }
     }
 
     @EqualsAndHashCode
@@ -207,12 +319,44 @@ public class DomainModel {
             return sargable;
         }
 
+        /**
+         * Bytes of the last field, the one stored, once for each element of a list it is reached through
+         */
+        public int getBytes() {
+            int bytes = fields.get(fields.size() - 1).bytes;
+            for (Entity.Field field : fields) {
+                if (field.typeDef.multiplicity == TypeDef.Multiplicity.LIST) {
+                    bytes *= Math.max(1, field.multiplicity);
+                }
+            }
+            return bytes;
+        }
+
         @Override
         public String toString() {
             return toStringVal;
         }
     }
 
+    /**
+     * An append-only entity whose rows expire after the retention. The generated id starts with its time, so a
+     * partition can be bucketed by the id's hour, day or week and a bucket dropped once it has expired.
+     * type Event
+     *   \@timeseries(bucket: "day", retention_days: 30)
+     */
+    public static class TimeSeries {
+        public String bucket = "day";
+        public long bucket_seconds = 24 * 3600;
+        public double retention_days = 30;
+
+        /**
+         * Buckets holding the rows within the retention
+         */
+        public int getBucketsRetained() {
+            return (int)Math.max(1, Math.ceil(retention_days * 24 * 3600 / bucket_seconds));
+        }
+    }
+
     /**
      * Selectivity directive for fields and entities
      */
@@ -252,4 +396,172 @@ public class DomainModel {
     public static enum MutationType {
         INSERT, UPDATE, DELETE
     }
+
+    /**
+     * Cluster topology, defaults to a single node.
+     * extend schema
+     * \@cluster(nodes: 6, replication_factor: 3, request_cost: 5)
+     */
+    public static class Cluster {
+        public int nodes = 1;
+        public int replication_factor = 1;
+        public double request_cost = 0;
+    }
+
+    /**
+     * Largest partition a table may hold. An oversized candidate is rejected, or split into buckets of its
+     * partition key: rows are spread by a hash of their id and a query reads every bucket.
+     * extend schema
+     * \@partitions(max_rows: 100000, max_bytes: 100000000, oversized: "split", max_buckets: 64)
+     */
+    public static class PartitionLimits {
+        public long max_rows = Long.MAX_VALUE;
+        public double max_bytes = Double.MAX_VALUE;
+        public OversizedPartitions oversized = OversizedPartitions.SPLIT;
+        public int max_buckets = 64;
+
+        /**
+         * The lower of the declared limit and the store's
+         */
+        public double getMaxBytes(CostModel costModel) {
+            return Math.min(max_bytes, costModel.getMaxPartitionBytes());
+        }
+    }
+
+    public enum OversizedPartitions {
+        SPLIT, REJECT
+    }
+
+    /**
+     * Solves large candidate spaces by column generation. The model starts from each query's cheapest candidates, and
+     * the dual prices of its LP relaxation pull in only the candidates that would lower its cost. Used when the
+     * workload has at least min_candidates candidates.
+     * extend schema
+     * \@column_generation(seed: 2, batch: 50, max_iterations: 50, min_candidates: 0)
+     */
+    public static class ColumnGeneration {
+        /* Cheapest candidates of each query selection in the first model */
+        public int seed = 2;
+        /* Most candidates added by one round of pricing */
+        public int batch = 50;
+        public int max_iterations = 50;
+        public int min_candidates = 0;
+    }
+
+    /**
+     * Memory budget shared by the tables and caches the optimizer adds. Declaring it enables cache candidates.
+     * extend schema
+     * \@memory(budget_bytes: 1000000000)
+     */
+    public static class Memory {
+        public long budget_bytes = Long.MAX_VALUE;
+    }
+
+    /**
+     * Cost of storing a byte, amortized into the workload's cost.
+     * extend schema
+     * \@storage(byte_cost: 0.000001)
+     */
+    public static class Storage {
+        public double byte_cost = 0;
+    }
+
+    /**
+     * Converts rows and requests into modeled milliseconds for the latency SLAs. By default a row read is a
+     * millisecond and requests are free.
+     * extend schema
+     * \@latency(row_ms: 0.05, sort_row_ms: 0.01, request_ms: 2, fanout_ms: 0.5, cache_ms: 0.5)
+     */
+    public static class Latency {
+        public double row_ms = 1;
+        /* Extra cost of sorting a row on top of reading it */
+        public double sort_row_ms = 0;
+        public double request_ms = 0;
+        /* Tail added by each additional node a scatter-gather waits on */
+        public double fanout_ms = 0;
+        public double cache_ms = 0;
+
+        /**
+         * A lookup by primary key
+         */
+        public double getLookupMs() {
+            return request_ms + row_ms;
+        }
+    }
+
+    /**
+     * Named workload profiles, e.g. the daytime peak and the batch window, each with its own rates. One layout is
+     * chosen for all of them, minimizing the weighted or the worst-case cost.
+     * extend schema
+     * \@profiles(objective: "worst_case", profiles: [
+     *     {name: "day", weight: 0.8, rates: [{name: "GetTodosByUser", throughput_per_second: 500}]}
+     *     {name: "batch", weight: 0.2, rates: [{name: "CreateTodo", throughput_per_second: 2000}]}
+     * ])
+     */
+    public static class Profiles {
+        public ProfileObjective objective = ProfileObjective.WEIGHTED;
+        public List<Profile> profiles = new ArrayList<>();
+    }
+
+    public enum ProfileObjective {
+        WEIGHTED, WORST_CASE
+    }
+
+    @AllArgsConstructor
+    public static class Profile {
+        public String name;
+        public double weight;
+        /* Rates by query or mutation name, unlisted ones keep their \@sla */
+        public Map<String, Integer> throughput;
+    }
+
+    /**
+     * One dimension of a what-if grid: values of an SLA parameter of a query or mutation. Every combination of the
+     * axes is a scenario.
+     * extend schema
+     * \@sweep(grid: [
+     *     {name: "GetTodosByUser", throughput_per_second: [1, 100, 500]}
+     *     {name: "GetTodosByCompleted", latency_ms: [100, 50]}
+     * ])
+     */
+    @AllArgsConstructor
+    public static class SweepAxis {
+        public String name;
+        public String parameter;
+        public List<Integer> values;
+    }
+
+    /**
+     * The currently deployed tables. Kept tables are free, new tables are charged a one-time backfill.
+     * extend schema
+     * \@deployed(backfill_cost: 1.0, tables: [{
+     *     entity: "Todo"
+     *     partition: ["user.username"]
+     *     clustering: [{field: "_id", direction: "DESC"}]
+     * }])
+     */
+    public static class DeployedLayout {
+        public double backfill_cost = 1.0;
+        public List<Table> tables = new ArrayList<>();
+
+        public boolean contains(Entity entity, Set<FieldPath> partitionKey, List<OrderBy> clusteringKey,
+                                Set<FieldPath> columns) {
+            return tables.contains(new Table(entity, partitionKey, clusteringKey, columns));
+        }
+
+        @AllArgsConstructor
+        @EqualsAndHashCode
+        public static class Table {
+            public Entity entity;
+            public Set<FieldPath> partitionKey;
+            public List<OrderBy> clusteringKey;
+            /* Payload columns, empty for a key-only table */
+            public Set<FieldPath> columns;
+
+            @Override
+            public String toString() {
+                return "" + partitionKey + clusteringKey + (columns.isEmpty() ? "" : columns.toString());
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -27,12 +27,80 @@ import static dbcompiler.DomainModel.*;
 
 public class DomainParser extends GraphQLBaseVisitor {
     private DomainModel model;
+    private final Metrics metrics;
 
     public DomainParser() {
+        this(new Metrics());
+    }
+
+    public DomainParser(Metrics metrics) {
         model = new DomainModel();
+        this.metrics = metrics;
     }
+
     public DomainModel visit(GraphQLParser.DocumentContext ctx) {
-        super.visit(ctx);
+        return link(Collections.singletonList(ctx));
+    }
+
+    /**
+     * Links the definitions of any number of documents in dependency order, so a definition may reference one in
+     * another file or further down the same file: entities and their relations, then their selectivity, query roots,
+     * queries and mutations, and finally schema extensions.
+     */
+    public DomainModel link(List<GraphQLParser.DocumentContext> documents) {
+        List<GraphQLParser.ObjectTypeDefinitionContext> types = new ArrayList<>();
+        List<GraphQLParser.QueryRootDefinitionContext> queryRoots = new ArrayList<>();
+        List<GraphQLParser.SchemaExtensionContext> extensions = new ArrayList<>();
+        List<GraphQLParser.OperationDefinitionContext> operations = new ArrayList<>();
+        List<GraphQLParser.FragmentDefinitionContext> fragments = new ArrayList<>();
+        for (GraphQLParser.DocumentContext document : documents) {
+            for (GraphQLParser.DefinitionContext definition : document.definition()) {
+                if (definition.typeSystemDefinition() != null && definition.typeSystemDefinition().typeDefinition() != null) {
+                    GraphQLParser.TypeDefinitionContext typeDefinition = definition.typeSystemDefinition().typeDefinition();
+                    if (typeDefinition.objectTypeDefinition() != null) {
+                        types.add(typeDefinition.objectTypeDefinition());
+                    } else if (typeDefinition.queryTypeDefinition() != null &&
+                            typeDefinition.queryTypeDefinition().queryRootDefinitions() != null) {
+                        queryRoots.addAll(typeDefinition.queryTypeDefinition().queryRootDefinitions().queryRootDefinition());
+                    }
+                } else if (definition.typeSystemExtension() != null && definition.typeSystemExtension().schemaExtension() != null) {
+                    extensions.add(definition.typeSystemExtension().schemaExtension());
+                } else if (definition.executableDefinition() != null) {
+                    if (definition.executableDefinition().operationDefinition() != null) {
+                        operations.add(definition.executableDefinition().operationDefinition());
+                    } else {
+                        fragments.add(definition.executableDefinition().fragmentDefinition());
+                    }
+                }
+            }
+        }
+
+        for (GraphQLParser.ObjectTypeDefinitionContext type : types) {
+            visitObjectTypeDefinition(type);
+        }
+        for (Entity entity : model.entities.values()) {
+            linkRelations(entity);
+        }
+        for (GraphQLParser.ObjectTypeDefinitionContext type : types) {
+            visitSelectivity(type);
+        }
+        for (GraphQLParser.QueryRootDefinitionContext queryRoot : queryRoots) {
+            visitQueryRootDefinition(queryRoot);
+        }
+        for (GraphQLParser.OperationDefinitionContext operation : operations) {
+            visitOperationDefinition(operation);
+        }
+        for (GraphQLParser.FragmentDefinitionContext fragment : fragments) {
+            visitFragmentDefinition(fragment);
+        }
+        for (GraphQLParser.SchemaExtensionContext extension : extensions) {
+            visitSchemaExtension(extension);
+        }
+
+        metrics.set("model.entities", model.entities.size());
+        metrics.set("model.query_definitions", model.queryDefinitionMap.size());
+        metrics.set("model.queries", model.queries.size());
+        metrics.set("model.mutations", model.mutations.size());
         return model;
     }
 
@@ -40,6 +108,7 @@ public class DomainParser extends GraphQLBaseVisitor {
     public Object visitObjectTypeDefinition(GraphQLParser.ObjectTypeDefinitionContext ctx) {
         Entity entity = new Entity();
         entity.entityName = ctx.name().getText();
+        Preconditions.checkState(!model.entities.containsKey(entity.entityName), "Entity [%s] is defined twice", entity.entityName);
         Map<String,Map<String, Object>> directives = visitDirectives(ctx.directives());
         entity.fieldMap = ctx.fieldsDefinition().fieldDefinition()
                 .stream()
@@ -48,17 +117,72 @@ public class DomainParser extends GraphQLBaseVisitor {
         entity.fieldMap.put("_id", createIDField(entity));
         entity.size = entity.new EntitySizeDirective();
         entity.size.max = Integer.parseInt(directives.get("size").get("max").toString());
-        if (directives.containsKey("selectivity")) {
-            entity.selectivityMap = parseSelectivityMap((List<Map<String, Object>>) directives.get("selectivity").get("fields"), entity);
-        } else {
-            entity.selectivityMap = ImmutableMap.of();
+        entity.selectivityMap = ImmutableMap.of();
+        if (directives.containsKey("timeseries")) {
+            entity.timeSeries = parseTimeSeries(directives.get("timeseries"));
         }
         model.entities.put(entity.entityName, entity);
         return entity;
     }
 
+    private TimeSeries parseTimeSeries(Map<String, Object> directive) {
+        TimeSeries timeSeries = new TimeSeries();
+        if (directive.containsKey("bucket")) {
+            timeSeries.bucket = directive.get("bucket").toString();
+            switch (timeSeries.bucket) {
+                case "hour":
+                    timeSeries.bucket_seconds = 3600;
+                    break;
+                case "day":
+                    timeSeries.bucket_seconds = 24 * 3600;
+                    break;
+                case "week":
+                    timeSeries.bucket_seconds = 7 * 24 * 3600;
+                    break;
+                default:
+                    throw new IllegalStateException(String.format("Unknown time bucket [%s], expected hour, day or week",
+                            timeSeries.bucket));
+            }
+        }
+        timeSeries.retention_days = getDouble(directive, "retention_days", timeSeries.retention_days);
+        Preconditions.checkState(timeSeries.retention_days > 0, "Retention must be positive");
+        return timeSeries;
+    }
+
+    /**
+     * A relationship's \@relation names its inverse on the related entity, which must lead back to it and, if it
+     * declares a relation too, name it in turn
+     */
+    private void linkRelations(Entity entity) {
+        for (Entity.Field field : entity.fieldMap.values()) {
+            if (field.relation == null) continue;
+            Entity target = field.typeDef.getEntity();
+            Preconditions.checkState(target != null, "@relation on %s.%s must be on a relationship",
+                    entity.entityName, field.name);
+            Entity.Field inverse = target.fieldMap.get(field.relation);
+            Preconditions.checkState(inverse != null && inverse.typeDef.getEntity() == entity,
+                    "Inverse %s.%s of %s.%s must be a relationship to %s", target.entityName, field.relation,
+                    entity.entityName, field.name, entity.entityName);
+            Preconditions.checkState(inverse.relation == null || inverse.relation.equals(field.name),
+                    "Inverse %s.%s names %s rather than %s", target.entityName, inverse.name, inverse.relation,
+                    field.name);
+        }
+    }
+
+    /**
+     * Selectivity paths may cross into other entities, so they are parsed once every entity is defined
+     */
+    private void visitSelectivity(GraphQLParser.ObjectTypeDefinitionContext ctx) {
+        Map<String,Map<String, Object>> directives = visitDirectives(ctx.directives());
+        if (directives.containsKey("selectivity")) {
+            Entity entity = model.entities.get(ctx.name().getText());
+            entity.selectivityMap = parseSelectivityMap((List<Map<String, Object>>) directives.get("selectivity").get("fields"), entity);
+        }
+    }
+
     private Entity.Field createIDField(Entity entity) {
-        return entity.new Field("_id", new TypeDef("ID", model, TypeDef.Multiplicity.SINGLE, true), true);
+        TypeDef typeDef = new TypeDef("ID", model, TypeDef.Multiplicity.SINGLE, true);
+        return entity.new Field("_id", typeDef, true, typeDef.getDefaultBytes(), 0, null);
     }
 
     private Map<Set<FieldPath>, Selectivity> parseSelectivityMap(List<Map<String, Object>> fields, Entity entity) {
@@ -73,7 +197,22 @@ public class DomainParser extends GraphQLBaseVisitor {
     public Entity.Field visitFieldDefinition(GraphQLParser.FieldDefinitionContext ctx, Entity entity) {
         Map<String,Map<String, Object>> directives = visitDirectives(ctx.directives());
 
-        Entity.Field field = entity.new Field(ctx.name().getText(), visitType_(ctx.type_()), !directives.containsKey("mutable"));
+        TypeDef typeDef = visitType_(ctx.type_());
+        int bytes = typeDef.getDefaultBytes();
+        if (directives.containsKey("size") && directives.get("size").containsKey("bytes")) {
+            bytes = Integer.parseInt(directives.get("size").get("bytes").toString());
+        }
+        int multiplicity = 0;
+        if (directives.containsKey("multiplicity")) {
+            multiplicity = Integer.parseInt(directives.get("multiplicity").get("max").toString());
+        }
+        String relation = null;
+        if (directives.containsKey("relation")) {
+            Preconditions.checkNotNull(directives.get("relation").get("field"), "@relation must name its inverse 'field'");
+            relation = directives.get("relation").get("field").toString();
+        }
+        Entity.Field field = entity.new Field(ctx.name().getText(), typeDef, !directives.containsKey("mutable"), bytes,
+                multiplicity, relation);
         return field;
     }
 
@@ -160,6 +299,248 @@ public class DomainParser extends GraphQLBaseVisitor {
         return null;
     }
 
+    @Override
+    public Object visitSchemaExtension(GraphQLParser.SchemaExtensionContext ctx) {
+        Map<String, Map<String, Object>> directives = visitDirectives(ctx.directives());
+        if (directives.containsKey("deployed")) {
+            model.deployed = parseDeployedLayout(directives.get("deployed"));
+        }
+        if (directives.containsKey("cluster")) {
+            model.cluster = parseCluster(directives.get("cluster"));
+        }
+        if (directives.containsKey("partitions")) {
+            model.partitions = parsePartitions(directives.get("partitions"));
+        }
+        if (directives.containsKey("storage") && directives.get("storage").containsKey("byte_cost")) {
+            model.storage.byte_cost = Double.parseDouble(directives.get("storage").get("byte_cost").toString());
+        }
+        if (directives.containsKey("latency")) {
+            model.latency = parseLatency(directives.get("latency"));
+        }
+        if (directives.containsKey("store")) {
+            model.costModel = parseStore(directives.get("store"));
+        }
+        if (directives.containsKey("profiles")) {
+            model.profiles = parseProfiles(directives.get("profiles"));
+        }
+        if (directives.containsKey("sweep")) {
+            model.sweep = parseSweep(directives.get("sweep"));
+        }
+        if (directives.containsKey("memory")) {
+            model.memory = new Memory();
+            if (directives.get("memory").containsKey("budget_bytes")) {
+                model.memory.budget_bytes = Long.parseLong(directives.get("memory").get("budget_bytes").toString());
+            }
+        }
+        if (directives.containsKey("column_generation")) {
+            model.columnGeneration = parseColumnGeneration(directives.get("column_generation"));
+        }
+        return null;
+    }
+
+    private ColumnGeneration parseColumnGeneration(Map<String, Object> directive) {
+        ColumnGeneration columnGeneration = new ColumnGeneration();
+        columnGeneration.seed = getInt(directive, "seed", columnGeneration.seed);
+        columnGeneration.batch = getInt(directive, "batch", columnGeneration.batch);
+        columnGeneration.max_iterations = getInt(directive, "max_iterations", columnGeneration.max_iterations);
+        columnGeneration.min_candidates = getInt(directive, "min_candidates", columnGeneration.min_candidates);
+        Preconditions.checkState(columnGeneration.seed > 0 && columnGeneration.batch > 0,
+                "Column generation seed and batch must be positive integers");
+        Preconditions.checkState(columnGeneration.max_iterations >= 0, "Max iterations must not be negative");
+        return columnGeneration;
+    }
+
+    private CostModel parseStore(Map<String, Object> directive) {
+        String engine = directive.getOrDefault("engine", "generic").toString();
+        switch (engine) {
+            case "generic":
+                return new CostModel.Generic();
+            case "wide_column":
+                CostModel.WideColumn wideColumn = new CostModel.WideColumn();
+                wideColumn.write_row_cost = getDouble(directive, "write_row_cost", wideColumn.write_row_cost);
+                wideColumn.sort_row_cost = getDouble(directive, "sort_row_cost", wideColumn.sort_row_cost);
+                wideColumn.space_amplification = getDouble(directive, "space_amplification", wideColumn.space_amplification);
+                wideColumn.max_partition_bytes = getDouble(directive, "max_partition_bytes", wideColumn.max_partition_bytes);
+                return wideColumn;
+            case "key_value":
+                CostModel.KeyValue keyValue = new CostModel.KeyValue();
+                keyValue.read_unit_bytes = getDouble(directive, "read_unit_bytes", keyValue.read_unit_bytes);
+                keyValue.write_unit_bytes = getDouble(directive, "write_unit_bytes", keyValue.write_unit_bytes);
+                keyValue.read_unit_cost = getDouble(directive, "read_unit_cost", keyValue.read_unit_cost);
+                keyValue.write_unit_cost = getDouble(directive, "write_unit_cost", keyValue.write_unit_cost);
+                keyValue.max_partition_bytes = getDouble(directive, "max_partition_bytes", keyValue.max_partition_bytes);
+                Preconditions.checkState(keyValue.read_unit_bytes > 0 && keyValue.write_unit_bytes > 0,
+                        "Read and write units must have a positive size");
+                return keyValue;
+            case "lsm":
+                CostModel.Lsm lsm = new CostModel.Lsm();
+                lsm.seek_cost = getDouble(directive, "seek_cost", lsm.seek_cost);
+                lsm.read_amplification = getDouble(directive, "read_amplification", lsm.read_amplification);
+                lsm.write_amplification = getDouble(directive, "write_amplification", lsm.write_amplification);
+                lsm.compaction_row_cost = getDouble(directive, "compaction_row_cost", lsm.compaction_row_cost);
+                lsm.space_amplification = getDouble(directive, "space_amplification", lsm.space_amplification);
+                return lsm;
+            default:
+                throw new IllegalStateException(String.format("Unknown store engine [%s], expected generic, " +
+                        "wide_column, key_value or lsm", engine));
+        }
+    }
+
+    private static double getDouble(Map<String, Object> directive, String key, double defaultValue) {
+        return directive.containsKey(key) ? Double.parseDouble(directive.get(key).toString()) : defaultValue;
+    }
+
+    private static int getInt(Map<String, Object> directive, String key, int defaultValue) {
+        return directive.containsKey(key) ? Integer.parseInt(directive.get(key).toString()) : defaultValue;
+    }
+
+    private Latency parseLatency(Map<String, Object> directive) {
+        Latency latency = new Latency();
+        if (directive.containsKey("row_ms")) {
+            latency.row_ms = Double.parseDouble(directive.get("row_ms").toString());
+        }
+        if (directive.containsKey("sort_row_ms")) {
+            latency.sort_row_ms = Double.parseDouble(directive.get("sort_row_ms").toString());
+        }
+        if (directive.containsKey("request_ms")) {
+            latency.request_ms = Double.parseDouble(directive.get("request_ms").toString());
+        }
+        if (directive.containsKey("fanout_ms")) {
+            latency.fanout_ms = Double.parseDouble(directive.get("fanout_ms").toString());
+        }
+        if (directive.containsKey("cache_ms")) {
+            latency.cache_ms = Double.parseDouble(directive.get("cache_ms").toString());
+        }
+        return latency;
+    }
+
+    private Profiles parseProfiles(Map<String, Object> directive) {
+        Profiles profiles = new Profiles();
+        if (directive.containsKey("objective")) {
+            profiles.objective = ProfileObjective.valueOf(directive.get("objective").toString().toUpperCase());
+        }
+        List<Map<String, Object>> declared = (List<Map<String, Object>>) directive.get("profiles");
+        Preconditions.checkState(declared != null && !declared.isEmpty(), "'profiles' must list at least one profile");
+        for (Map<String, Object> profile : declared) {
+            Preconditions.checkNotNull(profile.get("name"), "'name' must be present in profile");
+            double weight = profile.containsKey("weight") ? Double.parseDouble(profile.get("weight").toString()) : 1;
+            Preconditions.checkState(weight >= 0, "Profile weight must not be negative %s", profile.get("name"));
+            Map<String, Integer> throughput = new LinkedHashMap<>();
+            for (Map<String, Object> rate : (List<Map<String, Object>>) profile.getOrDefault("rates", new ArrayList<>())) {
+                String name = checkOperation(rate.get("name"));
+                Preconditions.checkNotNull(rate.get("throughput_per_second"), "'throughput_per_second' must be present in rate %s", name);
+                throughput.put(name, Integer.parseInt(rate.get("throughput_per_second").toString()));
+            }
+            profiles.profiles.add(new Profile(profile.get("name").toString(), weight, throughput));
+        }
+        return profiles;
+    }
+
+    /**
+     * The name of a declared query or mutation
+     */
+    private String checkOperation(Object name) {
+        Preconditions.checkNotNull(name, "'name' must name a query or mutation");
+        for (Query query : model.queries) {
+            if (query.name.equals(name.toString())) return query.name;
+        }
+        for (Mutation mutation : model.mutations) {
+            if (mutation.name.equals(name.toString())) return mutation.name;
+        }
+        throw new IllegalStateException(String.format("Query or mutation [%s] cannot be found.", name));
+    }
+
+    private List<SweepAxis> parseSweep(Map<String, Object> directive) {
+        Set<String> queries = model.queries.stream().map(q -> q.name).collect(Collectors.toSet());
+        List<SweepAxis> axes = new ArrayList<>();
+        List<Map<String, Object>> grid = (List<Map<String, Object>>) directive.get("grid");
+        Preconditions.checkNotNull(grid, "'grid' must be present in sweep");
+        for (Map<String, Object> axis : grid) {
+            String name = checkOperation(axis.get("name"));
+            for (String parameter : Arrays.asList("throughput_per_second", "latency_ms")) {
+                if (!axis.containsKey(parameter)) continue;
+                Preconditions.checkState(!parameter.equals("latency_ms") || queries.contains(name),
+                        "Only queries have a latency, %s", name);
+                List<Integer> values = ((List<Object>) axis.get(parameter)).stream()
+                        .map(v -> Integer.parseInt(v.toString()))
+                        .collect(Collectors.toList());
+                axes.add(new SweepAxis(name, parameter, values));
+            }
+        }
+        return axes;
+    }
+
+    private Cluster parseCluster(Map<String, Object> directive) {
+        Cluster cluster = new Cluster();
+        if (directive.containsKey("nodes")) {
+            cluster.nodes = Integer.parseInt(directive.get("nodes").toString());
+        }
+        if (directive.containsKey("replication_factor")) {
+            cluster.replication_factor = Integer.parseInt(directive.get("replication_factor").toString());
+        }
+        if (directive.containsKey("request_cost")) {
+            cluster.request_cost = Double.parseDouble(directive.get("request_cost").toString());
+        }
+        if (directive.containsKey("max_partition_rows")) {
+            model.partitions.max_rows = Long.parseLong(directive.get("max_partition_rows").toString());
+            Preconditions.checkState(model.partitions.max_rows > 0, "Max partition rows must be a positive integer");
+        }
+        Preconditions.checkState(cluster.nodes > 0, "Cluster must have at least one node");
+        Preconditions.checkState(cluster.replication_factor > 0 && cluster.replication_factor <= cluster.nodes,
+                "Replication factor must be between 1 and the number of nodes");
+        return cluster;
+    }
+
+    private PartitionLimits parsePartitions(Map<String, Object> directive) {
+        PartitionLimits partitions = model.partitions;
+        if (directive.containsKey("max_rows")) {
+            partitions.max_rows = Long.parseLong(directive.get("max_rows").toString());
+        }
+        partitions.max_bytes = getDouble(directive, "max_bytes", partitions.max_bytes);
+        if (directive.containsKey("oversized")) {
+            partitions.oversized = OversizedPartitions.valueOf(directive.get("oversized").toString().toUpperCase());
+        }
+        if (directive.containsKey("max_buckets")) {
+            partitions.max_buckets = Integer.parseInt(directive.get("max_buckets").toString());
+        }
+        Preconditions.checkState(partitions.max_rows > 0 && partitions.max_bytes > 0,
+                "Partition limits must be positive");
+        Preconditions.checkState(partitions.max_buckets > 0, "Max buckets must be a positive integer");
+        return partitions;
+    }
+
+    private DeployedLayout parseDeployedLayout(Map<String, Object> directive) {
+        DeployedLayout layout = new DeployedLayout();
+        if (directive.containsKey("backfill_cost")) {
+            layout.backfill_cost = Double.parseDouble(directive.get("backfill_cost").toString());
+        }
+        List<Map<String, Object>> tables = (List<Map<String, Object>>) directive.get("tables");
+        if (tables == null) return layout;
+        for (Map<String, Object> table : tables) {
+            Preconditions.checkNotNull(table.get("entity"), "'entity' must be present in deployed table");
+            Entity entity = model.entities.get(table.get("entity").toString());
+            Preconditions.checkNotNull(entity, "Entity [%s] cannot be found.", table.get("entity"));
+            Set<FieldPath> partitionKey = ((List<String>) table.getOrDefault("partition", new ArrayList<>())).stream()
+                    .map(e -> parseFieldPath(e, entity))
+                    .collect(Collectors.toSet());
+            List<OrderBy> clusteringKey = new ArrayList<>();
+            List<OrderBy> orders = parseOrderBy(ImmutableMap.of("order", table.getOrDefault("clustering", new ArrayList<>())), entity);
+            if (orders != null) {
+                clusteringKey.addAll(orders);
+            }
+            /* Deployed tables always end with the cardinality preserving ID */
+            OrderBy idOrder = new OrderBy(parseFieldPath("_id", entity), Direction.DESC);
+            if (!clusteringKey.contains(idOrder)) {
+                clusteringKey.add(idOrder);
+            }
+            Set<FieldPath> columns = ((List<String>) table.getOrDefault("columns", new ArrayList<>())).stream()
+                    .map(e -> parseFieldPath(e, entity))
+                    .collect(Collectors.toSet());
+            layout.tables.add(new DeployedLayout.Table(entity, partitionKey, clusteringKey, columns));
+        }
+        return layout;
+    }
+
     @Override
     public Object visitExecutableDefinition(GraphQLParser.ExecutableDefinitionContext ctx) {
         return super.visitExecutableDefinition(ctx);
@@ -254,9 +635,15 @@ public class DomainParser extends GraphQLBaseVisitor {
         Mutation mutation = new Mutation();
         mutation.name = ctx.fragmentName().getText();
         Map<String, Map<String, Object>> directives = visitDirectives(ctx.directives());
+        mutation.sla = mutation.new MutationSla(Integer.MAX_VALUE, 1);
         if (directives.containsKey("sla")) {
             Preconditions.checkNotNull(directives.get("sla"), "Mutation %s must contain SLA", mutation.name);
-            mutation.sla = mutation.new MutationSla(Integer.parseInt(directives.get("sla").get("max_tables").toString()));
+            if (directives.get("sla").containsKey("max_tables")) {
+                mutation.sla.max_tables = Integer.parseInt(directives.get("sla").get("max_tables").toString());
+            }
+            if (directives.get("sla").containsKey("throughput_per_second")) {
+                mutation.sla.throughput_per_second = Integer.parseInt(directives.get("sla").get("throughput_per_second").toString());
+            }
             Preconditions.checkState(mutation.sla.max_tables > 0, "Max tables must be a positive integer %s", mutation.name);
         }
         String entityName = ctx.typeCondition().namedType().getText();
@@ -314,13 +701,40 @@ public class DomainParser extends GraphQLBaseVisitor {
 
     public QueryDefinition.SqlClause visitSqlDirective(Map<String, Map<String, Object>> directives, Entity rootEntity) {
         if (!directives.containsKey("sql")) return null;
+        if (rootEntity == null) { //Scalar results, e.g. aggregates, name the entity they select from
+            Preconditions.checkNotNull(directives.get("sql").get("from"), "Scalar query definitions must contain 'from'");
+            rootEntity = model.entities.get(directives.get("sql").get("from").toString());
+            Preconditions.checkNotNull(rootEntity, "Entity [%s] cannot be found.", directives.get("sql").get("from"));
+        }
         return new QueryDefinition.SqlClause(rootEntity,
                 parseConjunctions(directives.get("sql"), rootEntity),
                 parseOrderBy(directives.get("sql"), rootEntity),
+                parseAggregate(directives.get("sql"), rootEntity),
                 directives.get("sql").toString()
                 );
     }
 
+    private QueryDefinition.Aggregate parseAggregate(Map<String, Object> directive, Entity rootEntity) {
+        Map<String, Object> aggregate = (Map<String, Object>) directive.get("aggregate");
+        if (aggregate == null) return null;
+        Preconditions.checkNotNull(aggregate.get("function"), "'function' must be present in aggregate");
+        QueryDefinition.AggregateFunction function =
+                QueryDefinition.AggregateFunction.valueOf(aggregate.get("function").toString().toUpperCase());
+        FieldPath field = null;
+        if (function == QueryDefinition.AggregateFunction.SUM || function == QueryDefinition.AggregateFunction.MIN ||
+                function == QueryDefinition.AggregateFunction.MAX) {
+            Preconditions.checkNotNull(aggregate.get("field"), "'field' must be present in aggregate %s", function);
+            field = parseFieldPath(aggregate.get("field").toString(), rootEntity);
+        }
+        int limit = 0;
+        if (function == QueryDefinition.AggregateFunction.TOP) {
+            Preconditions.checkNotNull(aggregate.get("limit"), "'limit' must be present in top aggregate");
+            Preconditions.checkNotNull(directive.get("order"), "Top aggregate must contain 'order'");
+            limit = Integer.parseInt(aggregate.get("limit").toString());
+        }
+        return new QueryDefinition.Aggregate(function, field, limit);
+    }
+
     private List<OrderBy> parseOrderBy(Map<String, Object> directive, Entity rootEntity) {
         List<OrderBy> orderByList = new ArrayList<>();
         List<Map<String, Object>> orders = (List<Map<String, Object>>)directive.get("order");
@@ -344,8 +758,7 @@ public class DomainParser extends GraphQLBaseVisitor {
             String[] p = part.split(" = ");
             FieldPath fieldPath = parseFieldPath(p[0], rootEntity);
             if (fieldPath.fields.size() > 1 && !LogicalPlan.isSargable(fieldPath)) {
-                //todo: This could be loosened to include denormalizable fields
-                throw new RuntimeException(String.format("Only immutable scalars on relationships can be used on conjunction %s. %s is invalid.", where, p[0]));
+                throw new RuntimeException(String.format("Only scalars on single relationships can be used on conjunction %s. %s is invalid.", where, p[0]));
             }
             conjunctions.add(new QueryDefinition.SqlClause.Conjunction(fieldPath, p[1]));
         }
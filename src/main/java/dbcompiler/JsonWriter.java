@@ -0,0 +1,148 @@
+/*
+ *  Copyright (C) 2020 Daniel Henneberger
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dbcompiler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Minimal streaming json writer for reports
+ */
+public class JsonWriter {
+    private final Writer writer;
+    /* Whether the current object or array already has an element */
+    private final Deque<Boolean> hasElement = new ArrayDeque<>();
+    private boolean afterName = false;
+
+    public JsonWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+    public JsonWriter beginObject() {
+        separate();
+        write("{");
+        hasElement.push(false);
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        hasElement.pop();
+        write("}");
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        separate();
+        write("[");
+        hasElement.push(false);
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        hasElement.pop();
+        write("]");
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        separate();
+        write(quote(name));
+        write(":");
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        separate();
+        write(value == null ? "null" : quote(value));
+        return this;
+    }
+
+    public JsonWriter value(double value) {
+        separate();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            write("null");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            write(Long.toString((long) value));
+        } else {
+            write(Double.toString(value));
+        }
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        separate();
+        write(Boolean.toString(value));
+        return this;
+    }
+
+    public JsonWriter flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    private void separate() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (hasElement.isEmpty()) return;
+        if (hasElement.peek()) {
+            write(",");
+        } else {
+            hasElement.pop();
+            hasElement.push(true);
+        }
+    }
+
+    private void write(String s) {
+        try {
+            writer.write(s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -18,8 +18,8 @@ package dbcompiler;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
-import com.google.ortools.linearsolver.MPVariable;
 import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
 import lombok.RequiredArgsConstructor;
@@ -32,26 +32,303 @@ import static dbcompiler.DomainModel.Direction.*;
 
 public class LogicalPlan {
     private final DomainModel model;
+    private final Metrics metrics;
+    private List<Scenario> scenarios = Collections.singletonList(Scenario.BASELINE);
     public static double row_scan_cost = 1.000;
 
     public LogicalPlan(DomainModel model) {
+        this(model, new Metrics());
+    }
+
+    public LogicalPlan(DomainModel model, Metrics metrics) {
         this.model = model;
+        this.metrics = metrics;
     }
 
     public Workload search() {
+        return search(Collections.singletonList(Scenario.BASELINE));
+    }
+
+    /**
+     * Enumerates candidates once for several scenarios: a candidate is kept if it meets the latency of any of them
+     */
+    public Workload search(List<Scenario> scenarios) {
+        this.scenarios = scenarios;
         List<QueryPlan> plans = new ArrayList<>();
+        List<CacheCandidate> caches = new ArrayList<>();
+        List<NestedPlan> nestedPlans = new ArrayList<>();
         for (Query query : model.queries) {
             for (Query.QueryDefinitionSelection selection : query.selections) {
-                QueryPlan plan = new QueryPlan(query, permute(query, selection.definition.sqlClause, selection.pageSize));
+                QueryDefinition.Aggregate aggregate = selection.definition.sqlClause.aggregate;
+                int pageSize = aggregate != null && aggregate.function == QueryDefinition.AggregateFunction.TOP ?
+                        aggregate.limit : selection.pageSize;
+                List<NestedPlan> nested = nest(query, selection);
+                Set<FieldPath> columns = getColumns(selection);
+                QueryPlan plan = new QueryPlan(query, permute(query, selection.definition.sqlClause, pageSize,
+                        columns, getReferencedColumns(columns, nested)));
+                for (NestedPlan nestedPlan : nested) {
+                    nestedPlan.parents = plan.plans;
+                }
+                nestedPlans.addAll(nested);
+                if (model.memory != null) {
+                    caches.add(cache(query, selection, plan.plans));
+                    metrics.increment("caches.generated");
+                }
                 if (plan.plans == null) continue;
                 plans.add(plan);
             }
         }
+        shareTables(plans);
+
+        return new Workload(plans, caches, nestedPlans);
+    }
+
+    /**
+     * Queries routing to the same keys can share one table if it covers all their columns, e.g. a count reading
+     * the rows of a table built for a listing. Candidates on the same keys but different columns are otherwise
+     * different tables, so for each set of keys a table covering the columns of every query with a candidate on it
+     * is added to each of those queries, costed as that query.
+     */
+    private void shareTables(List<QueryPlan> plans) {
+        Map<List<Object>, List<Index>> byKeys = new LinkedHashMap<>();
+        for (QueryPlan plan : plans) {
+            for (QPlan qplan : plan.plans) {
+                Index index = qplan.index;
+                if (index.aggregate != null || index.fetch) continue;
+                byKeys.computeIfAbsent(Arrays.asList(index.rootEntity, index.partitionKey, index.timeBucketed,
+                        index.clusteringKey), k -> new ArrayList<>()).add(index);
+            }
+        }
+
+        Map<Index, QueryPlan> planOf = new IdentityHashMap<>();
+        for (QueryPlan plan : plans) {
+            for (QPlan qplan : plan.plans) {
+                planOf.put(qplan.index, plan);
+            }
+        }
+        for (List<Index> indexes : byKeys.values()) {
+            Set<FieldPath> columns = new HashSet<>();
+            for (Index index : indexes) {
+                columns.addAll(index.columns);
+            }
+            for (Index index : indexes) {
+                if (index.columns.equals(columns)) continue;
+                Index shared = limitPartitions(index.withColumns(columns));
+                metrics.increment("candidates.generated");
+                if (shared == null) continue;
+                if (shared.getLatencyMs() > getLatencyBound(shared.query)) {
+                    metrics.increment("candidates.filtered_sla");
+                    continue;
+                }
+                if (hasCandidate(planOf.get(index), shared)) continue;
+                planOf.get(index).plans.add(new QPlan(shared, null));
+                metrics.increment("candidates.shared");
+            }
+        }
+    }
+
+    /**
+     * Whether the query already has the candidate, e.g. the variant embedding its nested selections
+     */
+    private static boolean hasCandidate(QueryPlan plan, Index index) {
+        for (QPlan qplan : plan.plans) {
+            if (!qplan.index.fetch && qplan.index.equals(index)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * A read-through cache holding one entry per distinct set of predicate values. Hotspots only need the hot
+     * keys cached: 20% of the keys serve 80% of the reads.
+     */
+    public CacheCandidate cache(Query query, Query.QueryDefinitionSelection selection, List<QPlan> plans) {
+        QueryDefinition.SqlClause clause = selection.definition.sqlClause;
+        Entity entity = clause.rootEntity;
+        Set<FieldPath> predicates = clause.conjunctions.stream()
+                .map(e->e.fieldPath)
+                .collect(Collectors.toSet());
+        boolean list = selection.definition.type.multiplicity == TypeDef.Multiplicity.LIST;
+
+        double keys = entity.size.max;
+        double hitRatio = 1.0;
+        Selectivity selectivity = entity.selectivityMap.get(predicates);
+        if (!hasRootId(clause) && selectivity != null) {
+            keys = Math.max(1, entity.size.max / (double)selectivity.distinct);
+            if (selectivity.hotspot) {
+                keys = Math.ceil(keys * 0.2);
+                hitRatio = 0.8;
+            }
+        }
+        double entryBytes = (list ? selection.pageSize : 1) * entity.getRowBytes();
+        if (clause.aggregate != null && clause.aggregate.function != QueryDefinition.AggregateFunction.TOP) {
+            entryBytes = 16;
+        }
 
-        return new Workload(plans);
+        List<Mutation> invalidatedBy = new ArrayList<>();
+        Set<Entity.Field> cachedFields = getCachedFields(selection);
+        for (Mutation mutation : model.mutations) {
+            boolean invalidates;
+            if (mutation.entity == entity && mutation.mutationType == MutationType.DELETE) {
+                invalidates = true;
+            } else if (mutation.entity == entity && mutation.mutationType == MutationType.INSERT) {
+                invalidates = list; //a new row only changes list results
+            } else {
+                invalidates = !Collections.disjoint(cachedFields, getFields(mutation.selectionSet, new HashSet<>()));
+            }
+            if (invalidates) {
+                invalidatedBy.add(mutation);
+            }
+        }
+
+        return new CacheCandidate(query, selection, plans, keys * entryBytes, hitRatio, invalidatedBy);
+    }
+
+    private Set<Entity.Field> getCachedFields(Query.QueryDefinitionSelection selection) {
+        Set<Entity.Field> fields = new HashSet<>();
+        for (QueryDefinition.SqlClause.Conjunction conjunction : selection.definition.sqlClause.conjunctions) {
+            fields.addAll(conjunction.fieldPath.fields);
+        }
+        if (selection.definition.sqlClause.orders != null) {
+            for (OrderBy orderBy : selection.definition.sqlClause.orders) {
+                fields.addAll(orderBy.path.fields);
+            }
+        }
+        if (selection.selections != null) {
+            getFields(selection.selections, fields);
+        }
+        return fields;
     }
 
-    public List<QPlan> permute(Query rootQuery, QueryDefinition.SqlClause clause, int pageSize) {
+    private static Set<Entity.Field> getFields(Map<String, Selection> selections, Set<Entity.Field> fields) {
+        for (Selection selection : selections.values()) {
+            fields.add(selection.field);
+            if (selection.selections != null) {
+                getFields(selection.selections, fields);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Payload columns a covering table needs for the selection, e.g. title, status, user._id
+     */
+    public Set<FieldPath> getColumns(Query.QueryDefinitionSelection selection) {
+        Set<FieldPath> columns = new HashSet<>();
+        if (selection.selections != null) {
+            addColumns(selection.selections, "", selection.definition.sqlClause.rootEntity, columns);
+        }
+        return columns;
+    }
+
+    /**
+     * Single relationships are embedded field by field, and lists bounded by \@multiplicity element by element.
+     * Only lists at the top of the selection are embedded.
+     */
+    private void addColumns(Map<String, Selection> selections, String prefix, Entity rootEntity, Set<FieldPath> columns) {
+        for (Map.Entry<String, Selection> entry : selections.entrySet()) {
+            Selection selection = entry.getValue();
+            if (selection.selections == null) {
+                columns.add(DomainParser.parseFieldPath(prefix + entry.getKey(), rootEntity));
+            } else if (selection.field.typeDef.multiplicity == TypeDef.Multiplicity.SINGLE ||
+                    selection.field.multiplicity > 0 && prefix.isEmpty()) {
+                addColumns(selection.selections, prefix + entry.getKey() + ".", rootEntity, columns);
+            }
+        }
+    }
+
+    /**
+     * The relationships nested in a selection beyond their id, e.g. user { username } or todos { title }, each
+     * with the child tables that can read it by its parent
+     */
+    private List<NestedPlan> nest(Query query, Query.QueryDefinitionSelection selection) {
+        List<NestedPlan> nested = new ArrayList<>();
+        if (selection.selections == null) return nested;
+        Entity rootEntity = selection.definition.sqlClause.rootEntity;
+        boolean listRoot = selection.definition.type.multiplicity == TypeDef.Multiplicity.LIST;
+        double parentRows = listRoot && !hasRootId(selection.definition.sqlClause) ? selection.pageSize : 1;
+        for (Map.Entry<String, Selection> entry : selection.selections.entrySet()) {
+            Selection nestedSelection = entry.getValue();
+            Entity.Field relationship = nestedSelection.field;
+            if (nestedSelection.selections == null || nestedSelection.selections.keySet().equals(
+                    Collections.singleton("_id"))) continue;
+
+            boolean list = relationship.typeDef.multiplicity == TypeDef.Multiplicity.LIST;
+            Set<FieldPath> embedded = null;
+            FieldPath ids = null;
+            if (!list || relationship.multiplicity > 0) {
+                embedded = new HashSet<>();
+                addColumns(nestedSelection.selections, entry.getKey() + ".", rootEntity, embedded);
+                ids = DomainParser.parseFieldPath(entry.getKey() + "._id", rootEntity);
+            }
+            NestedPlan nestedPlan = new NestedPlan(query, null, relationship, embedded, ids, parentRows,
+                    new ArrayList<>());
+            Entity.Field inverse = getInverse(relationship);
+            if (list && inverse != null && inverse.typeDef.multiplicity == TypeDef.Multiplicity.SINGLE) {
+                Index child = getChildTable(query, nestedSelection, relationship, inverse);
+                metrics.increment("candidates.generated");
+                if (child != null) {
+                    nestedPlan.plans.add(new QPlan(child, null));
+                }
+            }
+            nested.add(nestedPlan);
+            metrics.increment("candidates.nested");
+        }
+        return nested;
+    }
+
+    /**
+     * The children of each parent in one partition, e.g. Todo keyed on user._id for User.todos, covering the
+     * nested selection. Returns null when its partitions are rejected as too large.
+     */
+    private Index getChildTable(Query query, Selection selection, Entity.Field relationship, Entity.Field inverse) {
+        Entity child = relationship.typeDef.getEntity();
+        FieldPath parent = DomainParser.parseFieldPath(inverse.name + "._id", child);
+        List<OrderBy> clusteringKey = Collections.singletonList(new OrderBy(getId(child), DESC));
+        QueryDefinition.SqlClause clause = new QueryDefinition.SqlClause(child,
+                Collections.singletonList(new QueryDefinition.SqlClause.Conjunction(parent, "$" + parent)),
+                clusteringKey, null, "{where=" + parent + " = $" + parent + "}");
+        Set<FieldPath> columns = new HashSet<>();
+        addColumns(selection.selections, "", child, columns);
+        int children = (int)Math.max(1, relationship.multiplicity > 0 ? relationship.multiplicity :
+                Math.ceil((double)child.size.max / relationship.getEntity().size.max));
+        return limitPartitions(new Index(query, Collections.singleton(parent), clusteringKey, child, clause, children,
+                model, null, columns, false, 1, false, true));
+    }
+
+    /**
+     * The declared inverse of a relationship, or else the only relationship back from the related entity
+     */
+    private static Entity.Field getInverse(Entity.Field relationship) {
+        if (relationship.getInverse() != null) {
+            return relationship.getInverse();
+        }
+        Entity.Field inverse = null;
+        for (Entity.Field field : relationship.typeDef.getEntity().fieldMap.values()) {
+            if (field.typeDef.getEntity() != relationship.getEntity()) continue;
+            if (inverse != null) return null;
+            inverse = field;
+        }
+        return inverse;
+    }
+
+    /**
+     * The columns with each nested relationship referenced by the ids of its rows rather than embedded
+     */
+    private static Set<FieldPath> getReferencedColumns(Set<FieldPath> columns, List<NestedPlan> nested) {
+        Set<FieldPath> referenced = new HashSet<>(columns);
+        for (NestedPlan nestedPlan : nested) {
+            if (nestedPlan.embedded == null) continue;
+            referenced.removeAll(nestedPlan.embedded);
+            referenced.add(nestedPlan.ids);
+        }
+        return referenced;
+    }
+
+    /**
+     * Candidates covering the columns, and the referenced columns when those differ, plus key-only tables
+     */
+    public List<QPlan> permute(Query rootQuery, QueryDefinition.SqlClause clause, int pageSize, Set<FieldPath> columns,
+                               Set<FieldPath> referenced) {
         /*
          * Queries with a generated ID on its root path can always be found with a direct lookup
          */
@@ -63,23 +340,160 @@ public class LogicalPlan {
         List<QPlan> plans = new ArrayList<>();
         Set<List<OrderBy>> sargableClusteringKeys = getSargableClusteringKeys(clause);
 
-        for (int i = 1; i <= sargable.size(); i++) {
+        /*
+         * On a cluster, a table without a partition key is also a candidate: it is read with a scatter-gather
+         */
+        int minPartitionFields = model.cluster.nodes > 1 ? 0 : 1;
+        for (int i = minPartitionFields; i <= sargable.size(); i++) {
             for (Set<FieldPath> comb : Sets.combinations(sargable, i)) {
                 if (clause.rootEntity.selectivityMap.containsKey(comb) && clause.rootEntity.selectivityMap.get(comb).hotspot) { //avoid hotspot
+                    metrics.increment("candidates.hotspot_skipped", sargableClusteringKeys.size());
                     continue;
                 }
                 for (List<OrderBy> clusteringKey : sargableClusteringKeys) {
-                    Index index = new Index(rootQuery, comb, clusteringKey, clause.rootEntity, clause,  pageSize);
-                    if (index.getRowScanCost() < rootQuery.sla.latency_ms) {
-                        plans.add(new QPlan(index, null));
+                    if (!hasSelectivity(comb, clusteringKey, clause)) {
+                        metrics.increment(comb.isEmpty() ? "candidates.unpartitioned_skipped" :
+                                "candidates.selectivity_skipped");
+                        continue;
+                    }
+                    for (boolean timeBucketed : getTimeBucketing(clause.rootEntity, clusteringKey)) {
+                        Index index = limitPartitions(new Index(rootQuery, comb, clusteringKey, clause.rootEntity,
+                                clause, pageSize, model, null, columns, false, 1, timeBucketed, false));
+                        metrics.increment("candidates.generated");
+                        if (index == null) continue;
+                        if (index.getLatencyMs() <= getLatencyBound(rootQuery)) {
+                            plans.add(new QPlan(index, null));
+                            /* Nested relationships read by their own plans */
+                            if (!referenced.equals(columns)) {
+                                Index reference = limitPartitions(index.withColumns(referenced));
+                                metrics.increment("candidates.generated");
+                                if (reference != null) {
+                                    plans.add(new QPlan(reference, null));
+                                }
+                            }
+                            /* A key-only table plus a batched fetch by primary key */
+                            if (!columns.isEmpty()) {
+                                Index keyOnly = limitPartitions(new Index(rootQuery, comb, clusteringKey,
+                                        clause.rootEntity, clause, pageSize, model, null, ImmutableSet.of(), true, 1,
+                                        timeBucketed, false));
+                                metrics.increment("candidates.generated");
+                                if (keyOnly != null) {
+                                    plans.add(new QPlan(keyOnly, null));
+                                }
+                            }
+                        } else {
+                            metrics.increment("candidates.filtered_sla");
+                        }
                     }
                 }
             }
         }
 
+        if (clause.aggregate != null && sargable.size() == clause.conjunctions.size()) {
+            plans.add(new QPlan(getMaterializedAggregate(rootQuery, clause, pageSize), null));
+            metrics.increment("candidates.generated");
+        }
+
         return plans;
     }
 
+    /**
+     * The keys rows are sorted within: the partition key and the clustering prefix in the query's order. null when
+     * the clustering key gives the whole order.
+     */
+    private static Set<FieldPath> getSortGroup(Set<FieldPath> partition, List<OrderBy> cluster, List<OrderBy> orders) {
+        if (orders == null || orders.isEmpty()) return null;
+        Set<FieldPath> all = new HashSet<>(partition);
+        int idx = -2;
+        for (int i = 0; i < cluster.size() && i < orders.size(); i++) { //b-tree always has the last element as ID
+            OrderBy clusterOrder = cluster.get(i);
+            OrderBy order = orders.get(i);
+            if (!clusterOrder.equals(order)) {
+                break;
+            }
+            idx = i;
+            all.add(clusterOrder.path);
+        }
+        return (idx + 1) == orders.size() ? null : all;
+    }
+
+    /**
+     * A table filters its partition by the predicates its clustering key leaves, or groups it by every predicate,
+     * and sorts within its clustering prefix, so their selectivity must be declared. A schema written for a single
+     * node may not declare it for unpartitioned tables, nor for keys on nullable or mutable fields.
+     */
+    private static boolean hasSelectivity(Set<FieldPath> partition, List<OrderBy> clusteringKey,
+                                          QueryDefinition.SqlClause clause) {
+        Map<Set<FieldPath>, Selectivity> selectivityMap = clause.rootEntity.selectivityMap;
+        Set<FieldPath> remaining = getRemainingScalars(partition, clusteringKey, clause);
+        if (clause.aggregate != null && clause.aggregate.function != QueryDefinition.AggregateFunction.TOP) {
+            Set<FieldPath> scanned = remaining.isEmpty() ?
+                    clause.conjunctions.stream().map(e->e.fieldPath).collect(Collectors.toSet()) : partition;
+            return scanned.isEmpty() || selectivityMap.containsKey(scanned);
+        }
+        Set<FieldPath> sorted = getSortGroup(partition, clusteringKey, clause.orders);
+        return (remaining.isEmpty() || selectivityMap.containsKey(remaining)) &&
+                (sorted == null || sorted.isEmpty() || selectivityMap.containsKey(sorted));
+    }
+
+    /**
+     * A time series clustered by its id, newest first, can also bucket its partitions by time: the latest rows are
+     * in the last few buckets, and expired buckets are dropped whole
+     */
+    private List<Boolean> getTimeBucketing(Entity entity, List<OrderBy> clusteringKey) {
+        if (entity.timeSeries != null && isIdOrder(clusteringKey.get(0))) {
+            return Arrays.asList(false, true);
+        }
+        return Collections.singletonList(false);
+    }
+
+    private static boolean isIdOrder(OrderBy orderBy) {
+        return orderBy.path.fields.size() == 1 && orderBy.path.fields.get(0).name.equals("_id");
+    }
+
+    /**
+     * Splits a candidate whose partitions exceed the limits into enough buckets, or rejects it. Returns null when
+     * rejected.
+     */
+    private Index limitPartitions(Index index) {
+        int buckets = index.getRequiredBuckets();
+        if (buckets == 1) {
+            return index;
+        }
+        if (model.partitions.oversized == OversizedPartitions.REJECT || buckets > model.partitions.max_buckets) {
+            metrics.increment("candidates.filtered_partition_size");
+            return null;
+        }
+        metrics.increment("candidates.split");
+        return index.withBuckets(buckets);
+    }
+
+    private int getLatencyBound(Query query) {
+        int latency = 0;
+        for (Scenario scenario : scenarios) {
+            latency = Math.max(latency, scenario.getLatency(query));
+        }
+        return latency;
+    }
+
+    /**
+     * A table holding the aggregate per group, maintained incrementally by every mutation. The group is the
+     * query's predicates; top-N keeps its N rows ordered in the clustering key.
+     */
+    private Index getMaterializedAggregate(Query rootQuery, QueryDefinition.SqlClause clause, int pageSize) {
+        Set<FieldPath> group = getSargablePredicates(clause);
+        List<OrderBy> clusteringKey = new ArrayList<>();
+        if (clause.aggregate.function == QueryDefinition.AggregateFunction.TOP) {
+            clusteringKey.addAll(clause.orders);
+            OrderBy idOrder = new OrderBy(getId(clause.rootEntity), DESC);
+            if (!clusteringKey.contains(idOrder)) {
+                clusteringKey.add(idOrder);
+            }
+        }
+        return new Index(rootQuery, group, clusteringKey, clause.rootEntity, clause, pageSize, model, clause.aggregate,
+                ImmutableSet.of(), false, 1, false, false);
+    }
+
     public static Set<FieldPath> getRemainingScalars(Set<FieldPath> comb, List<OrderBy> clusteringKey, QueryDefinition.SqlClause clause) {
         Set<FieldPath> paths = clause.conjunctions.stream().map(e->e.fieldPath).collect(Collectors.toSet());
         for (FieldPath m : comb) {
@@ -177,11 +591,15 @@ public class LogicalPlan {
         return fieldPaths;
     }
 
+    /**
+     * Any scalar reachable through single relationships can be denormalized into a key. Nulls are keyed as their
+     * own value, and mutable fields are charged the rows rewritten when they change.
+     */
     public static boolean isSargable(FieldPath e) {
         for (Entity.Field field : e.fields) {
             if (field.typeDef.getEntity() == null) {
-                return field.typeDef.nonnull;
-            } else if (!field.typeDef.nonnull){
+                return true;
+            } else if (field.typeDef.multiplicity == TypeDef.Multiplicity.LIST) {
                 return false;
             }
         }
@@ -189,12 +607,92 @@ public class LogicalPlan {
         return false;
     }
 
+    /**
+     * Rows that embed a row of the relationship's entity, e.g. Todos per User for Todo.user. Uses the
+     * \@multiplicity of the inverse list when declared, otherwise the ratio of entity sizes.
+     */
+    public static double getFanOut(Entity.Field relationship) {
+        Entity entity = relationship.getEntity();
+        Entity target = relationship.typeDef.getEntity();
+        Entity.Field declared = relationship.getInverse();
+        if (declared != null && declared.typeDef.multiplicity == TypeDef.Multiplicity.LIST && declared.multiplicity > 0) {
+            return declared.multiplicity;
+        }
+        for (Entity.Field inverse : target.fieldMap.values()) {
+            if (inverse.typeDef.multiplicity == TypeDef.Multiplicity.LIST && inverse.typeDef.getEntity() == entity &&
+                    inverse.multiplicity > 0) {
+                return inverse.multiplicity;
+            }
+        }
+        return Math.max(1, Math.ceil((double)entity.size.max / target.size.max));
+    }
+
     @AllArgsConstructor
     public class QueryPlan {
         public Query query;
         public List<QPlan> plans;
     }
 
+    /**
+     * A relationship nested in a query selection, e.g. user { username } of a Todo listing, and the ways to read it:
+     * embedded in the parent's table, from a table of the children by their parent, or by a batched lookup of the
+     * related rows by id. A plan of the parent that does not embed it needs one of the others.
+     */
+    @AllArgsConstructor
+    public class NestedPlan {
+        public Query query;
+        /* Plans of the parent selection, null when it is found by id */
+        public List<QPlan> parents;
+        public Entity.Field relationship;
+        /* Columns of a parent's table embedding the selection, null for a list without a multiplicity */
+        public Set<FieldPath> embedded;
+        /* Ids of the related rows on a parent's row, null for a list without a multiplicity */
+        public FieldPath ids;
+        /* Parent rows read per query, the child tables are read once for each */
+        public double parentRows;
+        public List<QPlan> plans;
+
+        public boolean isEmbeddedIn(Index parent) {
+            return embedded != null && parent != null && !parent.fetch && parent.columns.containsAll(embedded);
+        }
+
+        /**
+         * Whether the parent's plan reads the ids to look up. A row fetched by id holds the id of each single
+         * relationship, but not the ids of a list.
+         */
+        public boolean hasIds(Index parent) {
+            if (ids == null) return false;
+            if (parent == null || parent.fetch) return relationship.typeDef.multiplicity == TypeDef.Multiplicity.SINGLE;
+            return parent.columns.contains(ids);
+        }
+
+        /**
+         * Related rows looked up per query, up to the multiplicity of a list for each parent row
+         */
+        public double getLookupRows() {
+            return parentRows * (relationship.typeDef.multiplicity == TypeDef.Multiplicity.LIST ?
+                    relationship.multiplicity : 1);
+        }
+
+        /**
+         * The cost each node pays to look the rows up in one batched request
+         */
+        public double getLookupCost() {
+            double rowBytes = relationship.typeDef.getEntity().getRowBytes();
+            return (getLookupRows() * model.costModel.getLookupCost(rowBytes) + model.cluster.request_cost) /
+                    model.cluster.nodes;
+        }
+
+        public double getLookupLatencyMs() {
+            return model.latency.request_ms + getLookupRows() * model.latency.row_ms;
+        }
+
+        @Override
+        public String toString() {
+            return "n:query:" + query.name + "[" + relationship.getEntity().entityName + "." + relationship.name + "]";
+        }
+    }
+
     @AllArgsConstructor
     public static class QPlan {
         public Index index;
@@ -214,20 +712,223 @@ public class LogicalPlan {
         @EqualsAndHashCode.Exclude
         public final int pageSize;
         @EqualsAndHashCode.Exclude
-        public Optimizer.UniqueIndex uniqueIndex;
-        public MPVariable variable;
+        public final DomainModel model;
+        /* Materialized aggregate, null for a table of rows */
+        public final QueryDefinition.Aggregate aggregate;
+        /* Payload columns stored on the table */
+        public final Set<FieldPath> columns;
+        /* Key-only tables fetch the selection by primary key */
+        @EqualsAndHashCode.Exclude
+        public final boolean fetch;
+        /* Oversized partitions are split into buckets by a hash of the id */
+        public final int buckets;
+        /* Partitions are bucketed by the time of the id, see TimeSeries */
+        public final boolean timeBucketed;
+        /* Child table of a nested relationship: each read returns a page of every child of one parent */
+        public final boolean child;
 
+        public String toString() {
+            return "i:query:"+query.name+ partitionKey.toString() + getBucketing() +
+                    clusteringKey.toString() + (aggregate != null ? aggregate.toString() : "") +
+                    (fetch ? "+fetch" : columns.isEmpty() ? "" : columns.toString());
+        }
 
+        /**
+         * The same keys covering other columns, not yet split into buckets
+         */
+        public Index withColumns(Set<FieldPath> columns) {
+            return new Index(query, partitionKey, clusteringKey, rootEntity, sqlClause, pageSize, model, aggregate,
+                    columns, false, 1, timeBucketed, child);
+        }
 
-        public String toString() {
-            return "i:query:"+query.name+ partitionKey.toString() + "" + clusteringKey.toString();
+        public Index withBuckets(int buckets) {
+            return new Index(query, partitionKey, clusteringKey, rootEntity, sqlClause, pageSize, model, aggregate,
+                    columns, fetch, buckets, timeBucketed, child);
+        }
+
+        /**
+         * e.g. /day*4 for day buckets each split in four
+         */
+        public String getBucketing() {
+            return (timeBucketed ? "/" + rootEntity.timeSeries.bucket : "") + (buckets > 1 ? "*" + buckets : "");
+        }
+
+        /**
+         * Rows scanned and fetched plus the network cost of every request, as priced by the model's store
+         */
+        public double getCost() {
+            return model.costModel.getReadCost(this);
+        }
+
+        /**
+         * Bytes of a row of the table, its keys and payload columns
+         */
+        public int getRowBytes() {
+            return getRowBytes(partitionKey, clusteringKey, columns, aggregate);
+        }
+
+        /**
+         * Bytes of a row of any table with these keys and payload columns, shared with the solver's tables
+         */
+        public static int getRowBytes(Set<FieldPath> partitionKey, List<OrderBy> clusteringKey,
+                                      Set<FieldPath> columns, QueryDefinition.Aggregate aggregate) {
+            if (aggregate != null && aggregate.function != QueryDefinition.AggregateFunction.TOP) {
+                return 16; //a counter
+            }
+            int bytes = 0;
+            for (FieldPath path : partitionKey) {
+                bytes += path.getBytes();
+            }
+            for (OrderBy orderBy : clusteringKey) {
+                bytes += orderBy.path.getBytes();
+            }
+            for (FieldPath path : columns) {
+                bytes += path.getBytes();
+            }
+            return bytes;
+        }
+
+        /**
+         * Rows of a page fetched by primary key in one batch
+         */
+        public double getFetchRows() {
+            return fetch ? pageSize : 0;
+        }
+
+        /**
+         * The cost each node pays, with queries spread evenly over the cluster. A read bound to one partition runs
+         * on a replica of that partition alone; a scatter-gather runs on a node of every replica set, and each scans
+         * its own page of rows.
+         */
+        public double getNodeCost() {
+            return (getCost() + (getFanOut() - 1) * getRowScanCost()) / model.cluster.nodes;
+        }
+
+        /**
+         * Requests needed per query: one per node for a scatter-gather, one per bucket of a split partition
+         */
+        public int getRequests() {
+            return getFanOut() * buckets * getTimeBucketsRead();
+        }
+
+        /**
+         * A partition key that is not fully bound by the query's equality predicates must scatter-gather
+         * across the cluster, asking one replica of each token range.
+         */
+        public int getFanOut() {
+            Set<FieldPath> predicates = sqlClause.conjunctions.stream()
+                    .map(e->e.fieldPath)
+                    .collect(Collectors.toSet());
+            if (!partitionKey.isEmpty() && predicates.containsAll(partitionKey)) {
+                return 1;
+            }
+            return (int)Math.ceil((double)model.cluster.nodes / model.cluster.replication_factor);
+        }
+
+        /**
+         * Buckets needed to keep each partition within the row and byte limits
+         */
+        public int getRequiredBuckets() {
+            PartitionLimits limits = model.partitions;
+            double partitionRows = getPartitionRows();
+            double buckets = Math.max(partitionRows / limits.max_rows,
+                    partitionRows * getRowBytes() / limits.getMaxBytes(model.costModel));
+            return (int)Math.min(Integer.MAX_VALUE, Math.max(1, Math.ceil(buckets)));
+        }
+
+        /**
+         * Rows in a single partition, of a single time bucket, before it is split into hash buckets, or 0 if unknown
+         */
+        public double getPartitionRows() {
+            double rows;
+            if (partitionKey.isEmpty()) {
+                rows = rootEntity.size.max;
+            } else if (child) {
+                rows = pageSize;
+            } else {
+                Selectivity selectivity = rootEntity.selectivityMap.get(partitionKey);
+                rows = selectivity == null ? 0 : selectivity.distinct;
+            }
+            return timeBucketed ? rows / rootEntity.timeSeries.getBucketsRetained() : rows;
+        }
+
+        /**
+         * A query reading newest first only reads back through the time buckets until its page is full; the newest
+         * bucket is half full on average. Any other query reads every retained bucket.
+         */
+        public int getTimeBucketsRead() {
+            if (!timeBucketed) {
+                return 1;
+            }
+            int retained = rootEntity.timeSeries.getBucketsRetained();
+            double bucketRows = getPartitionRows();
+            if (!isTimeOrdered() || bucketRows == 0) {
+                return retained;
+            }
+            double rows = calculateFilterRowSize(rootEntity, partitionKey, clusteringKey, sqlClause);
+            return (int)Math.min(retained, Math.ceil(rows / bucketRows + 0.5));
+        }
+
+        /**
+         * Reads the clustering key's id order, the order of the time buckets
+         */
+        private boolean isTimeOrdered() {
+            return aggregate == null && !isGroupAggregate() && sqlClause.orders != null && !sqlClause.orders.isEmpty() &&
+                    !clusteringKey.isEmpty() && isIdOrder(clusteringKey.get(0)) && getSortRows() == 0;
         }
 
         public double getRowScanCost() {
-            double sortCost = calculateSortRowSize(rootEntity, partitionKey, clusteringKey, sqlClause.orders);
-            double filterCost = calculateFilterRowSize(rootEntity, partitionKey, clusteringKey, sqlClause);
-            return Math.max(filterCost * row_scan_cost,
-                    sortCost * row_scan_cost);
+            return Math.max(getFilterRows(), getSortRows()) * row_scan_cost;
+        }
+
+        /**
+         * Rows read to find the page: a materialized aggregate reads one, an aggregate reads its group
+         */
+        public double getFilterRows() {
+            if (aggregate != null) {
+                /* Materialized: a counter, or the top-N rows kept in order */
+                return aggregate.function == QueryDefinition.AggregateFunction.TOP ? pageSize : 1;
+            }
+            if (child) {
+                return pageSize;
+            }
+            if (isGroupAggregate()) {
+                return calculateGroupRowSize(rootEntity, partitionKey, clusteringKey, sqlClause);
+            }
+            double rows = calculateFilterRowSize(rootEntity, partitionKey, clusteringKey, sqlClause);
+            int timeBuckets = getTimeBucketsRead();
+            int merged = buckets * (timeBucketed && isTimeOrdered() ? 1 : timeBuckets);
+            if (merged > 1) {
+                /* Each bucket reads its own page before they are merged */
+                rows = Math.min(rows * merged, Math.max(rows, getPartitionRows() * timeBuckets));
+            }
+            return rows;
+        }
+
+        /**
+         * Rows read to sort when the clustering key does not give the query's order
+         */
+        public double getSortRows() {
+            if (aggregate != null || isGroupAggregate()) {
+                return 0;
+            }
+            return calculateSortRowSize(rootEntity, partitionKey, clusteringKey, sqlClause.orders);
+        }
+
+        private boolean isGroupAggregate() {
+            return sqlClause.aggregate != null && sqlClause.aggregate.function != QueryDefinition.AggregateFunction.TOP;
+        }
+
+        /**
+         * Modeled latency of the query on this table: a round trip per sequential request (partition buckets, then
+         * the fetch), the tail of a scatter-gather across nodes, and the rows read, sorted and fetched.
+         */
+        public double getLatencyMs() {
+            Latency latency = model.latency;
+            return (buckets * getTimeBucketsRead() + (fetch ? 1 : 0)) * latency.request_ms +
+                    (getFanOut() - 1) * latency.fanout_ms +
+                    (getRowScanCost() / row_scan_cost + getFetchRows()) * latency.row_ms +
+                    getSortRows() * latency.sort_row_ms;
         }
 
         private double calculateFilterRowSize(Entity entity, Set<FieldPath> partition, List<OrderBy> cluster, QueryDefinition.SqlClause clause) {
@@ -243,22 +944,28 @@ public class LogicalPlan {
             }
         }
 
-        private double calculateSortRowSize(Entity entity, Set<FieldPath> partition, List<OrderBy> cluster, List<OrderBy> orders) {
-            if (orders.isEmpty()) return 0;
-            Set<FieldPath> all = new HashSet<>(partition);
-            int idx = -2;
-            for (int i = 0; i < cluster.size() && i < orders.size(); i++) { //b-tree always has the last element as ID
-                OrderBy clusterOrder = cluster.get(i);
-                OrderBy order = orders.get(i);
-                if (!clusterOrder.equals(order)) {
-                    break;
-                }
-                idx = i;
-                all.add(clusterOrder.path);
+        /**
+         * Aggregating reads every row of the group, or the whole partition when the group cannot be ranged over
+         */
+        private double calculateGroupRowSize(Entity entity, Set<FieldPath> partition, List<OrderBy> cluster, QueryDefinition.SqlClause clause) {
+            Set<FieldPath> remainingScalars = getRemainingScalars(partition, cluster, clause);
+            Set<FieldPath> scanned = remainingScalars.isEmpty() ?
+                    clause.conjunctions.stream().map(e->e.fieldPath).collect(Collectors.toSet()) : partition;
+            if (scanned.isEmpty()) {
+                return entity.size.max;
             }
+            Selectivity selectivity = entity.selectivityMap.get(scanned);
+            Preconditions.checkNotNull(selectivity, "Selectivity needed for %s", scanned);
+
+            return selectivity.distinct;
+        }
 
-            if ((idx + 1)== orders.size()) {
+        private double calculateSortRowSize(Entity entity, Set<FieldPath> partition, List<OrderBy> cluster, List<OrderBy> orders) {
+            Set<FieldPath> all = getSortGroup(partition, cluster, orders);
+            if (all == null) {
                 return 0; //all satisfied
+            } else if (all.isEmpty()) {
+                return entity.size.max; //unpartitioned, sort everything
             } else {
                 Selectivity selectivity = entity.selectivityMap.get(all);
                 Preconditions.checkNotNull(selectivity, "Selectivity needed for %s", all);
@@ -269,8 +976,74 @@ public class LogicalPlan {
 
     }
 
+    @RequiredArgsConstructor
+    public static class CacheCandidate {
+        public final Query query;
+        public final Query.QueryDefinitionSelection selection;
+        /* null when the query is found by id */
+        public final List<QPlan> plans;
+        public final double bytes;
+        /* Share of reads whose key is cached, before invalidations */
+        public final double keyHitRatio;
+        public final List<Mutation> invalidatedBy;
+
+        public double getInvalidationsPerSecond(Scenario scenario) {
+            double invalidations = 0;
+            for (Mutation mutation : invalidatedBy) {
+                invalidations += scenario.getThroughput(mutation);
+            }
+            return invalidations;
+        }
+
+        /**
+         * An invalidated entry misses on its next read
+         */
+        public double getHitRatio(Scenario scenario) {
+            double throughput = scenario.getThroughput(query);
+            return keyHitRatio * throughput / (throughput + getInvalidationsPerSecond(scenario));
+        }
+
+        /**
+         * Per node, as are the reads the cache saves
+         */
+        public double getInvalidationCost(Scenario scenario, Cluster cluster) {
+            return getInvalidationsPerSecond(scenario) * row_scan_cost / cluster.nodes;
+        }
+
+        @Override
+        public String toString() {
+            return "c:query:" + query.name + "[" + selection.definition.name + "]";
+        }
+    }
+
     @AllArgsConstructor
     public class Workload {
         public List<QueryPlan> plans;
+        public List<CacheCandidate> caches;
+        public List<NestedPlan> nested;
+
+        /**
+         * The same query selections with a subset of their plans, in the order of {@link #plans}, and the caches
+         * and nested plans over those subsets
+         */
+        public Workload withPlans(List<List<QPlan>> subsets) {
+            List<QueryPlan> restricted = new ArrayList<>();
+            Map<List<QPlan>, List<QPlan>> subsetOf = new IdentityHashMap<>();
+            for (int i = 0; i < plans.size(); i++) {
+                restricted.add(new QueryPlan(plans.get(i).query, subsets.get(i)));
+                subsetOf.put(plans.get(i).plans, subsets.get(i));
+            }
+            List<CacheCandidate> restrictedCaches = new ArrayList<>();
+            for (CacheCandidate cache : caches) {
+                restrictedCaches.add(cache.plans == null ? cache : new CacheCandidate(cache.query, cache.selection,
+                        subsetOf.get(cache.plans), cache.bytes, cache.keyHitRatio, cache.invalidatedBy));
+            }
+            List<NestedPlan> restrictedNested = new ArrayList<>();
+            for (NestedPlan plan : nested) {
+                restrictedNested.add(new NestedPlan(plan.query, plan.parents == null ? null : subsetOf.get(plan.parents),
+                        plan.relationship, plan.embedded, plan.ids, plan.parentRows, plan.plans));
+            }
+            return new Workload(restricted, restrictedCaches, restrictedNested);
+        }
     }
 }
@@ -0,0 +1,225 @@
+/*
+ *  Copyright (C) 2020 Daniel Henneberger
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dbcompiler;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compile time metrics: wall time and allocation per phase, and counters of the search space.
+ *
+ * try (Metrics.Phase phase = metrics.phase("search")) {
+ *     ...
+ *     metrics.increment("candidates.generated");
+ * }
+ */
+public class Metrics {
+    private final List<PhaseResult> phases = new CopyOnWriteArrayList<>();
+    private final Map<String, AtomicLong> counters = new ConcurrentSkipListMap<>();
+    private final List<MetricsSink> sinks = new CopyOnWriteArrayList<>();
+    private final List<Phase> open = new CopyOnWriteArrayList<>();
+
+    public Phase phase(String name) {
+        return new Phase(name);
+    }
+
+    public void increment(String counter) {
+        increment(counter, 1);
+    }
+
+    public void increment(String counter, long delta) {
+        counters.computeIfAbsent(counter, k -> new AtomicLong()).addAndGet(delta);
+    }
+
+    public void set(String counter, long value) {
+        counters.computeIfAbsent(counter, k -> new AtomicLong()).set(value);
+    }
+
+    public long get(String counter) {
+        AtomicLong value = counters.get(counter);
+        return value == null ? 0 : value.get();
+    }
+
+    public List<PhaseResult> getPhases() {
+        return phases;
+    }
+
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        counters.forEach((k, v) -> values.put(k, v.get()));
+        return values;
+    }
+
+    public void addSink(MetricsSink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * Send the metrics to every sink
+     */
+    public void report() {
+        for (MetricsSink sink : sinks) {
+            sink.report(this);
+        }
+    }
+
+    public void writeJson(JsonWriter json) {
+        json.beginObject();
+        json.name("phases").beginArray();
+        for (PhaseResult phase : phases) {
+            json.beginObject()
+                    .name("name").value(phase.name)
+                    .name("wall_ms").value(phase.wallMs)
+                    .name("allocated_bytes").value(phase.allocatedBytes)
+                    .endObject();
+        }
+        json.endArray();
+        json.name("counters").beginObject();
+        for (Map.Entry<String, Long> counter : getCounters().entrySet()) {
+            json.name(counter.getKey()).value(counter.getValue());
+        }
+        json.endObject();
+        json.endObject();
+    }
+
+    public String toJson() {
+        StringWriter writer = new StringWriter();
+        writeJson(new JsonWriter(writer));
+        return writer.toString();
+    }
+
+    /**
+     * A timed phase, recorded when closed. Allocation is measured on the current thread, plus that of the tasks
+     * run on other threads through {@link #onWorker(Callable)}.
+     */
+    public class Phase implements AutoCloseable {
+        private final String name;
+        private final long startNanos;
+        private final long startAllocated;
+        private final AtomicLong workerAllocated = new AtomicLong();
+
+        private Phase(String name) {
+            this.name = name;
+            this.startAllocated = getAllocatedBytes();
+            this.startNanos = System.nanoTime();
+            open.add(this);
+        }
+
+        /**
+         * The task, to be run on another thread, with its allocation added to this phase and the phases enclosing it
+         */
+        public <T> Callable<T> onWorker(Callable<T> task) {
+            return () -> {
+                long start = getAllocatedBytes();
+                try {
+                    return task.call();
+                } finally {
+                    long end = getAllocatedBytes();
+                    if (start >= 0 && end >= 0) {
+                        for (Phase phase : open) {
+                            if (phase.startNanos <= startNanos) {
+                                phase.workerAllocated.addAndGet(end - start);
+                            }
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            open.remove(this);
+            double wallMs = (System.nanoTime() - startNanos) / 1e6;
+            long allocated = getAllocatedBytes();
+            phases.add(new PhaseResult(name, wallMs,
+                    allocated < 0 || startAllocated < 0 ? -1 : allocated - startAllocated + workerAllocated.get()));
+        }
+    }
+
+    public static class PhaseResult {
+        public final String name;
+        public final double wallMs;
+        /* -1 when the jvm cannot measure allocation */
+        public final long allocatedBytes;
+
+        public PhaseResult(String name, double wallMs, long allocatedBytes) {
+            this.name = name;
+            this.wallMs = wallMs;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+            if (threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled()) {
+                return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Receives the metrics of a compile
+     */
+    public interface MetricsSink {
+        void report(Metrics metrics);
+    }
+
+    /**
+     * Writes the json report to a file
+     */
+    public static class JsonFileSink implements MetricsSink {
+        private final String file;
+
+        public JsonFileSink(String file) {
+            this.file = file;
+        }
+
+        @Override
+        public void report(Metrics metrics) {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+                metrics.writeJson(new JsonWriter(writer));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Prints a summary line per phase and counter
+     */
+    public static class PrintSink implements MetricsSink {
+        @Override
+        public void report(Metrics metrics) {
+            System.out.println("\nMetrics: ");
+            for (PhaseResult phase : metrics.getPhases()) {
+                System.out.println(String.format("  %-20s %10.2f ms %14d bytes", phase.name, phase.wallMs, phase.allocatedBytes));
+            }
+            for (Map.Entry<String, Long> counter : metrics.getCounters().entrySet()) {
+                System.out.println(String.format("  %-32s %10d", counter.getKey(), counter.getValue()));
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ *  Copyright (C) 2020 Daniel Henneberger
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dbcompiler;
+
+import com.google.ortools.linearsolver.MPConstraintProto;
+import com.google.ortools.linearsolver.MPModelProto;
+import com.google.ortools.linearsolver.MPVariableProto;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Streams the solver's model to disk in LP or MPS format, or as a binary MPModelProto (.pb). The model is written
+ * row by row from the proto instead of being built up as a single string.
+ */
+public class ModelWriter {
+    private static final int TERMS_PER_LINE = 8;
+
+    private final MPModelProto model;
+    private final String[] variableNames;
+    private final String[] constraintNames;
+
+    public ModelWriter(MPModelProto model) {
+        this.model = model;
+        Set<String> used = new HashSet<>();
+        this.variableNames = new String[model.getVariableCount()];
+        for (int i = 0; i < variableNames.length; i++) {
+            variableNames[i] = uniqueName(model.getVariable(i).getName(), "x" + i, used);
+        }
+        this.constraintNames = new String[model.getConstraintCount()];
+        for (int i = 0; i < constraintNames.length; i++) {
+            constraintNames[i] = uniqueName(model.getConstraint(i).getName(), "c" + i, used);
+        }
+    }
+
+    /**
+     * Format is chosen by extension: .lp, .mps, otherwise binary proto
+     */
+    public void write(String file) throws IOException {
+        if (file.endsWith(".lp") || file.endsWith(".mps")) {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+                if (file.endsWith(".lp")) {
+                    writeLp(writer);
+                } else {
+                    writeMps(writer);
+                }
+            }
+        } else {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                model.writeTo(out);
+            }
+        }
+    }
+
+    public void writeLp(Writer writer) throws IOException {
+        if (model.getObjectiveOffset() != 0) {
+            writer.write("\\ objective offset: " + model.getObjectiveOffset() + "\n");
+        }
+        writer.write(model.getMaximize() ? "Maximize\n" : "Minimize\n");
+        writer.write(" obj:");
+        int terms = 0;
+        for (int i = 0; i < model.getVariableCount(); i++) {
+            double coefficient = model.getVariable(i).getObjectiveCoefficient();
+            if (coefficient == 0) continue;
+            writeTerm(writer, coefficient, variableNames[i], terms++);
+        }
+        writer.write("\nSubject To\n");
+        for (int c = 0; c < model.getConstraintCount(); c++) {
+            MPConstraintProto constraint = model.getConstraint(c);
+            double lb = constraint.getLowerBound();
+            double ub = constraint.getUpperBound();
+            if (lb == ub) {
+                writeLpRow(writer, constraintNames[c], constraint, " = " + number(lb));
+            } else {
+                if (!Double.isInfinite(lb)) {
+                    writeLpRow(writer, constraintNames[c] + (Double.isInfinite(ub) ? "" : "_lb"), constraint, " >= " + number(lb));
+                }
+                if (!Double.isInfinite(ub)) {
+                    writeLpRow(writer, constraintNames[c] + (Double.isInfinite(lb) ? "" : "_ub"), constraint, " <= " + number(ub));
+                }
+            }
+        }
+        writer.write("Bounds\n");
+        for (int i = 0; i < model.getVariableCount(); i++) {
+            MPVariableProto variable = model.getVariable(i);
+            double lb = variable.getLowerBound();
+            double ub = variable.getUpperBound();
+            if (variable.getIsInteger() && isBinary(variable)) continue;
+            if (Double.isInfinite(lb) && Double.isInfinite(ub)) {
+                writer.write(" " + variableNames[i] + " free\n");
+            } else {
+                writer.write(" " + (Double.isInfinite(lb) ? "-inf" : number(lb)) + " <= " + variableNames[i] + " <= " +
+                        (Double.isInfinite(ub) ? "+inf" : number(ub)) + "\n");
+            }
+        }
+        writeLpIntegers(writer, "Binaries", true);
+        writeLpIntegers(writer, "Generals", false);
+        writer.write("End\n");
+    }
+
+    private void writeLpRow(Writer writer, String name, MPConstraintProto constraint, String rhs) throws IOException {
+        writer.write(" " + name + ":");
+        for (int t = 0; t < constraint.getVarIndexCount(); t++) {
+            writeTerm(writer, constraint.getCoefficient(t), variableNames[constraint.getVarIndex(t)], t);
+        }
+        if (constraint.getVarIndexCount() == 0 && variableNames.length > 0) {
+            writer.write(" 0 " + variableNames[0]); //rows need a term
+        }
+        writer.write(rhs + "\n");
+    }
+
+    private void writeLpIntegers(Writer writer, String section, boolean binary) throws IOException {
+        boolean header = false;
+        for (int i = 0; i < model.getVariableCount(); i++) {
+            MPVariableProto variable = model.getVariable(i);
+            if (!variable.getIsInteger() || isBinary(variable) != binary) continue;
+            if (!header) {
+                writer.write(section + "\n");
+                header = true;
+            }
+            writer.write(" " + variableNames[i] + "\n");
+        }
+    }
+
+    private void writeTerm(Writer writer, double coefficient, String name, int term) throws IOException {
+        if (term > 0 && term % TERMS_PER_LINE == 0) {
+            writer.write("\n  ");
+        }
+        writer.write(coefficient < 0 ? " - " : " + ");
+        writer.write(number(Math.abs(coefficient)));
+        writer.write(" ");
+        writer.write(name);
+    }
+
+    /**
+     * Free MPS. Columns are written column-major, so the constraint matrix is transposed first.
+     */
+    public void writeMps(Writer writer) throws IOException {
+        int variables = model.getVariableCount();
+        int[] counts = new int[variables + 1];
+        for (int c = 0; c < model.getConstraintCount(); c++) {
+            MPConstraintProto constraint = model.getConstraint(c);
+            for (int t = 0; t < constraint.getVarIndexCount(); t++) {
+                counts[constraint.getVarIndex(t) + 1]++;
+            }
+        }
+        for (int i = 0; i < variables; i++) {
+            counts[i + 1] += counts[i];
+        }
+        int[] rows = new int[counts[variables]];
+        double[] values = new double[counts[variables]];
+        int[] next = counts.clone();
+        for (int c = 0; c < model.getConstraintCount(); c++) {
+            MPConstraintProto constraint = model.getConstraint(c);
+            for (int t = 0; t < constraint.getVarIndexCount(); t++) {
+                int position = next[constraint.getVarIndex(t)]++;
+                rows[position] = c;
+                values[position] = constraint.getCoefficient(t);
+            }
+        }
+
+        writer.write("NAME dbcompiler\n");
+        if (model.getMaximize()) {
+            writer.write("OBJSENSE\n    MAX\n");
+        }
+        writer.write("ROWS\n N  COST\n");
+        for (int c = 0; c < model.getConstraintCount(); c++) {
+            writer.write(" " + rowType(model.getConstraint(c)) + "  " + constraintNames[c] + "\n");
+        }
+
+        writer.write("COLUMNS\n");
+        boolean integer = false;
+        int marker = 0;
+        for (int i = 0; i < variables; i++) {
+            MPVariableProto variable = model.getVariable(i);
+            if (variable.getIsInteger() != integer) {
+                integer = variable.getIsInteger();
+                writer.write("    M" + marker++ + " 'MARKER' '" + (integer ? "INTORG" : "INTEND") + "'\n");
+            }
+            if (variable.getObjectiveCoefficient() != 0) {
+                writer.write("    " + variableNames[i] + " COST " + number(variable.getObjectiveCoefficient()) + "\n");
+            } else if (counts[i] == counts[i + 1]) {
+                writer.write("    " + variableNames[i] + " COST 0\n");
+            }
+            for (int position = counts[i]; position < counts[i + 1]; position++) {
+                writer.write("    " + variableNames[i] + " " + constraintNames[rows[position]] + " " + number(values[position]) + "\n");
+            }
+        }
+        if (integer) {
+            writer.write("    M" + marker + " 'MARKER' 'INTEND'\n");
+        }
+
+        writer.write("RHS\n");
+        if (model.getObjectiveOffset() != 0) {
+            writer.write("    RHS COST " + number(-model.getObjectiveOffset()) + "\n");
+        }
+        for (int c = 0; c < model.getConstraintCount(); c++) {
+            MPConstraintProto constraint = model.getConstraint(c);
+            double rhs = Double.isInfinite(constraint.getLowerBound()) ? constraint.getUpperBound() : constraint.getLowerBound();
+            if (!Double.isInfinite(rhs) && rhs != 0) {
+                writer.write("    RHS " + constraintNames[c] + " " + number(rhs) + "\n");
+            }
+        }
+
+        boolean rangesHeader = false;
+        for (int c = 0; c < model.getConstraintCount(); c++) {
+            MPConstraintProto constraint = model.getConstraint(c);
+            if (isRanged(constraint)) {
+                if (!rangesHeader) {
+                    writer.write("RANGES\n");
+                    rangesHeader = true;
+                }
+                writer.write("    RNG " + constraintNames[c] + " " +
+                        number(constraint.getUpperBound() - constraint.getLowerBound()) + "\n");
+            }
+        }
+
+        writer.write("BOUNDS\n");
+        for (int i = 0; i < variables; i++) {
+            MPVariableProto variable = model.getVariable(i);
+            double lb = variable.getLowerBound();
+            double ub = variable.getUpperBound();
+            if (variable.getIsInteger() && isBinary(variable)) {
+                writer.write(" BV BND " + variableNames[i] + "\n");
+                continue;
+            }
+            if (Double.isInfinite(lb) && Double.isInfinite(ub)) {
+                writer.write(" FR BND " + variableNames[i] + "\n");
+                continue;
+            }
+            if (Double.isInfinite(lb)) {
+                writer.write(" MI BND " + variableNames[i] + "\n");
+            } else if (lb != 0) {
+                writer.write(" LO BND " + variableNames[i] + " " + number(lb) + "\n");
+            }
+            if (!Double.isInfinite(ub)) {
+                writer.write(" UP BND " + variableNames[i] + " " + number(ub) + "\n");
+            }
+        }
+        writer.write("ENDATA\n");
+    }
+
+    private static String rowType(MPConstraintProto constraint) {
+        double lb = constraint.getLowerBound();
+        double ub = constraint.getUpperBound();
+        if (lb == ub) return "E";
+        if (Double.isInfinite(lb)) return "L";
+        return "G"; //ranged rows are G with a range
+    }
+
+    private static boolean isRanged(MPConstraintProto constraint) {
+        return constraint.getLowerBound() != constraint.getUpperBound() &&
+                !Double.isInfinite(constraint.getLowerBound()) && !Double.isInfinite(constraint.getUpperBound());
+    }
+
+    private static boolean isBinary(MPVariableProto variable) {
+        return variable.getLowerBound() == 0 && variable.getUpperBound() == 1;
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * LP and MPS names may not contain spaces or brackets
+     */
+    private static String uniqueName(String name, String fallback, Set<String> used) {
+        String sanitized = name == null || name.isEmpty() ? fallback : name.replaceAll("[^A-Za-z0-9_.]", "_");
+        if (Character.isDigit(sanitized.charAt(0)) || sanitized.charAt(0) == '.') {
+            sanitized = "_" + sanitized;
+        }
+        String unique = sanitized;
+        for (int i = 1; !used.add(unique); i++) {
+            unique = sanitized + "_" + i;
+        }
+        return unique;
+    }
+}
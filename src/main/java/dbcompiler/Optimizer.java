@@ -22,6 +22,8 @@ import com.google.ortools.linearsolver.MPObjective;
 import com.google.ortools.linearsolver.MPSolver;
 import com.google.ortools.linearsolver.MPVariable;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import static dbcompiler.LogicalPlan.*;
 import static dbcompiler.DomainModel.*;
@@ -37,24 +39,93 @@ public class Optimizer {
     private final DomainModel model;
 
     private Set<UniqueIndex> uniqueIndices;
+    private final Map<Index, UniqueIndex> uniqueIndexMap = new IdentityHashMap<>();
+    /* Solver variables are kept per optimizer, not on the shared candidates, so scenarios can be solved in parallel */
+    private final Map<Index, MPVariable> indexVariables = new IdentityHashMap<>();
+    private final Map<UniqueIndex, MPVariable> tableVariables = new IdentityHashMap<>();
+    private final Map<CacheCandidate, MPVariable> cacheVariables = new IdentityHashMap<>();
+    /* Cache+table pairs, in the order of the cache's plans */
+    private final Map<CacheCandidate, List<MPVariable>> hitVariables = new IdentityHashMap<>();
+    /* Nested relationships read by a batched lookup by id */
+    private final Map<LogicalPlan.NestedPlan, MPVariable> lookupVariables = new IdentityHashMap<>();
+    /* Child tables of nested relationships, read once per parent row */
+    private final Map<Index, LogicalPlan.NestedPlan> nestedIndices = new IdentityHashMap<>();
+    private final Map<Scenario, Costs> profileCosts = new LinkedHashMap<>();
+    /* Costs independent of the workload's rates: storage and migration */
+    private final Costs fixedCosts = new Costs();
+    /* Modeled latency of each query by profile name, variable terms and a constant for lookups by id */
+    private final Map<String, Map<Query, Costs>> latencyTerms = new LinkedHashMap<>();
+    private final Map<Query, Double> latencyConstants = new LinkedHashMap<>();
+    private final Metrics metrics;
+    private final Scenario scenario;
+    /* Where to write the model before solving, by extension .lp, .mps or .pb */
+    private String modelExportFile;
+    /* Rejected plans listed per query by the explain report */
+    private int explainAlternatives = 3;
+    /* Solves the LP relaxation instead, whose dual prices price candidates for column generation */
+    private boolean relaxed;
+    private MPSolver relaxation;
+    /* False for the models column generation solves itself */
+    private boolean generateColumns = true;
+    /* Constraints whose dual prices enter a candidate's reduced cost */
+    private final Map<LogicalPlan.QueryPlan, MPConstraint> pathConstraints = new IdentityHashMap<>();
+    /* By profile name */
+    private final Map<String, Map<Query, MPConstraint>> latencyConstraints = new HashMap<>();
+    private final Map<Mutation, MPConstraint> maxTablesConstraints = new IdentityHashMap<>();
+    private final Map<LogicalPlan.NestedPlan, MPConstraint> nestedConstraints = new IdentityHashMap<>();
+    private final Map<LogicalPlan.NestedPlan, MPConstraint> idsConstraints = new IdentityHashMap<>();
+    /* By profile name */
+    private final Map<String, MPConstraint> worstCaseConstraints = new HashMap<>();
+    private MPConstraint memoryConstraint;
+    /* The table of each candidate, by its keys and columns */
+    private final Map<Index, UniqueIndex> tablesByKey = new HashMap<>();
+    /* Relaxation cost of leaving a query unserved, above the cost of any plan */
+    private static final double UNSERVED_COST = 1e9;
     public static double infinity = java.lang.Double.POSITIVE_INFINITY;
 
     public Optimizer(LogicalPlan.Workload workload, DomainModel model) {
+        this(workload, model, new Metrics());
+    }
+
+    public Optimizer(LogicalPlan.Workload workload, DomainModel model, Metrics metrics) {
+        this(workload, model, metrics, Scenario.BASELINE);
+    }
+
+    public Optimizer(LogicalPlan.Workload workload, DomainModel model, Metrics metrics, Scenario scenario) {
         this.workload = workload;
         this.allIndices = getAllIndicies(workload.plans);
         this.model = model;
+        this.metrics = metrics;
+        this.scenario = scenario;
         this.uniqueIndices = new HashSet<>();
+        for (LogicalPlan.NestedPlan nested : workload.nested) {
+            for (QPlan plan : nested.plans) {
+                allIndices.add(plan.index);
+                nestedIndices.put(plan.index, nested);
+            }
+        }
 
-        Map<Index, UniqueIndex> uniqueSetMap = new HashMap<>();
         for (Index index : allIndices) {
             UniqueIndex uniqueIndex;
-            if ((uniqueIndex = uniqueSetMap.get(index)) == null) {
-                uniqueIndex = new UniqueIndex(index.partitionKey, index.clusteringKey, index.rootEntity);
-                uniqueSetMap.put(index, uniqueIndex);
+            if ((uniqueIndex = tablesByKey.get(index)) == null) {
+                uniqueIndex = newTable(index);
+                tablesByKey.put(index, uniqueIndex);
                 uniqueIndices.add(uniqueIndex);
             }
-            index.uniqueIndex = uniqueIndex;
+            uniqueIndexMap.put(index, uniqueIndex);
         }
+        setCandidateMetrics();
+    }
+
+    private void setCandidateMetrics() {
+        metrics.set("candidates.indexes", allIndices.size());
+        metrics.set("candidates.deduplicated", allIndices.size() - uniqueIndices.size());
+        metrics.set("candidates.tables", uniqueIndices.size());
+    }
+
+    private static UniqueIndex newTable(Index index) {
+        return new UniqueIndex(index.partitionKey, index.clusteringKey, index.rootEntity, index.aggregate,
+                index.columns, index.buckets, index.timeBucketed);
     }
 
     public void printPlan() {
@@ -69,22 +140,160 @@ public class Optimizer {
     }
 
 
-    public void findBestPlan() {
+    public void setModelExportFile(String modelExportFile) {
+        this.modelExportFile = modelExportFile;
+    }
+
+    public void setExplainAlternatives(int explainAlternatives) {
+        this.explainAlternatives = explainAlternatives;
+    }
+
+    private boolean hasUnplannedQuery() {
+        for (LogicalPlan.QueryPlan queryPlan : workload.plans) {
+            if (queryPlan.plans.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Solves the model over every candidate, or under \@column_generation over the candidates generated for it. If
+     * the generated candidates admit no solution, the model over every candidate is solved instead. A query left
+     * without candidates cannot be served by either, so the full model reports it infeasible.
+     */
+    public Solution findBestPlan() {
+        if (generateColumns && model.columnGeneration != null &&
+                allIndices.size() >= model.columnGeneration.min_candidates && !hasUnplannedQuery()) {
+            LogicalPlan.Workload generated = new ColumnGenerator(workload, model, metrics, scenario).generate();
+            Optimizer master = new Optimizer(generated, model, metrics, scenario);
+            master.generateColumns = false;
+            master.modelExportFile = modelExportFile;
+            master.explainAlternatives = explainAlternatives;
+            Solution solution = master.findBestPlan();
+            /* The candidate metrics describe the whole space, the ilp metrics the model solved */
+            setCandidateMetrics();
+            if (!solution.status.equals(MPSolver.ResultStatus.INFEASIBLE.name())) return solution;
+            metrics.increment("colgen.fallback");
+        }
+
         MPSolver solver = MPSolver.createSolver("Optimizer", "CBC");
-        printPlan();
 
+        try (Metrics.Phase phase = metrics.phase("optimize.build")) {
+            buildModel(solver);
+        }
+        metrics.set("ilp.variables", solver.numVariables());
+        metrics.set("ilp.constraints", solver.numConstraints());
+
+        if (modelExportFile != null) {
+            try (Metrics.Phase phase = metrics.phase("optimize.export")) {
+                new ModelWriter(solver.exportModelToProto()).write(modelExportFile);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return solve(solver);
+    }
+
+    /**
+     * Solves the LP relaxation for the dual prices of {@link #getReducedCost}. A query may go unserved at
+     * {@link #UNSERVED_COST}, so the relaxation is feasible whichever candidates it has.
+     */
+    boolean solveRelaxation() {
+        relaxed = true;
+        relaxation = MPSolver.createSolver("Relaxation", "GLOP");
+        buildModel(relaxation);
+        return relaxation.solve() == MPSolver.ResultStatus.OPTIMAL;
+    }
+
+    void deleteRelaxation() {
+        relaxation.delete();
+        relaxation = null;
+    }
+
+    /**
+     * Reduced cost of adding a candidate for the query plan to the relaxation, its table taken as built: its cost
+     * less the dual prices of the constraints it would enter. Cache savings are left out, which can only overstate
+     * it.
+     */
+    double getReducedCost(LogicalPlan.QueryPlan queryPlan, Index index) {
+        Map<Scenario, Double> costs = new LinkedHashMap<>();
+        for (Scenario profile : getProfiles()) {
+            costs.put(profile, index.getNodeCost() * profile.getThroughput(index.query));
+        }
+        double reducedCost = getObjectiveCost(costs) - pathConstraints.get(queryPlan).dualValue();
+        for (Map<Query, MPConstraint> constraints : latencyConstraints.values()) {
+            reducedCost -= constraints.get(index.query).dualValue() * index.getLatencyMs();
+        }
+        /* Enters the rows of its nested relationships with -1 */
+        for (LogicalPlan.NestedPlan nested : workload.nested) {
+            if (nested.parents != queryPlan.plans) continue;
+            if (!nested.isEmbeddedIn(index)) {
+                reducedCost += nestedConstraints.get(nested).dualValue();
+            }
+            if (idsConstraints.containsKey(nested) && nested.hasIds(index)) {
+                reducedCost += idsConstraints.get(nested).dualValue();
+            }
+        }
+        return reducedCost;
+    }
+
+    /**
+     * Reduced cost of adding the candidate's table to the relaxation, 0 when it is in the model already
+     */
+    double getTableReducedCost(Index index) {
+        if (tablesByKey.containsKey(index)) return 0;
+        UniqueIndex table = newTable(index);
+        Map<Scenario, Double> costs = new LinkedHashMap<>();
+        for (Scenario profile : getProfiles()) {
+            costs.put(profile, getMaintenanceCost(table, profile));
+        }
+        double reducedCost = getObjectiveCost(costs) + getStorageCost(table) + getMigrationCost(table);
+        for (Map.Entry<Mutation, MPConstraint> entry : maxTablesConstraints.entrySet()) {
+            if (entry.getKey().entity == table.rootEntity) {
+                reducedCost -= entry.getValue().dualValue();
+            }
+        }
+        if (memoryConstraint != null && !isDeployed(table)) {
+            reducedCost -= memoryConstraint.dualValue() * table.getBytes();
+        }
+        return reducedCost;
+    }
+
+    /**
+     * Objective coefficient of a variable with the given cost in each profile. Under the worst-case objective it
+     * enters each profile's row z - cost(p) >= 0 instead, priced at the row's dual.
+     */
+    private double getObjectiveCost(Map<Scenario, Double> costs) {
+        double cost = 0;
+        for (Map.Entry<Scenario, Double> entry : costs.entrySet()) {
+            if (model.profiles == null) {
+                cost += entry.getValue();
+            } else if (model.profiles.objective == ProfileObjective.WORST_CASE) {
+                cost += worstCaseConstraints.get(entry.getKey().name).dualValue() * entry.getValue();
+            } else {
+                cost += getWeight(entry.getKey()) * entry.getValue();
+            }
+        }
+        return cost;
+    }
+
+    private MPVariable makeVariable(MPSolver solver, String name) {
+        return relaxed ? solver.makeNumVar(0, 1, name) : solver.makeBoolVar(name);
+    }
+
+    private void buildModel(MPSolver solver) {
         /*
          * Generate index variables: x1, x2, x3, ...
          */
         for (UniqueIndex index : uniqueIndices) {
-            index.variable = solver.makeBoolVar("u" + index.toString());
+            tableVariables.put(index, makeVariable(solver, "u" + index.toString()));
         }
 
         /*
          * Generate index+query variables: x1q1, x2q1, x3q1, ...
          */
         for (Index index : allIndices) {
-            index.variable = solver.makeBoolVar(index.toString());
+            indexVariables.put(index, makeVariable(solver, index.toString()));
         }
 
         /*
@@ -92,8 +301,8 @@ public class Optimizer {
          */
         for (Index index : allIndices) {
             MPConstraint constraint = solver.makeConstraint(0, infinity);
-            constraint.setCoefficient(index.uniqueIndex.variable, 1);
-            constraint.setCoefficient(index.variable, -1);
+            constraint.setCoefficient(getVariable(uniqueIndexMap.get(index)), 1);
+            constraint.setCoefficient(getVariable(index), -1);
         }
 
         createMutationCostConstraint(solver);
@@ -114,21 +323,440 @@ public class Optimizer {
          *   x1q2 + x2q2 >= 1
          */
         for (LogicalPlan.QueryPlan queryPlan : workload.plans) {
-            setPathConstraintsForIndex(solver, queryPlan.plans);
+            pathConstraints.put(queryPlan, setPathConstraintsForIndex(solver, queryPlan.plans));
         }
+        createNestedConstraints(solver);
+
+        createCacheVariables(solver);
+        createMemoryConstraint(solver);
+        createLatencyConstraints(solver);
 
         /*
-         * Find minimum total cost
+         * Find minimum total cost. Costs that scale with the workload's rates are summed per profile.
          */
+        fixedCosts.terms.clear();
+        setStorageCost(fixedCosts);
+        setMigrationCost(fixedCosts);
+        profileCosts.clear();
+        for (Scenario profile : getProfiles()) {
+            Costs costs = new Costs();
+            for (Index index : allIndices) {
+                costs.add(getVariable(index), index.getNodeCost() * getExecutions(index) *
+                        profile.getThroughput(index.query));
+            }
+            for (Map.Entry<LogicalPlan.NestedPlan, MPVariable> lookup : lookupVariables.entrySet()) {
+                costs.add(lookup.getValue(), lookup.getKey().getLookupCost() * profile.getThroughput(lookup.getKey().query));
+            }
+            setMaintenanceCost(costs, profile);
+            setCacheCost(costs, profile);
+            profileCosts.put(profile, costs);
+        }
+        if (relaxed) {
+            int unserved = 0;
+            for (MPConstraint constraint : pathConstraints.values()) {
+                MPVariable variable = solver.makeNumVar(0, 1, "unserved" + unserved++);
+                constraint.setCoefficient(variable, 1);
+                fixedCosts.add(variable, UNSERVED_COST);
+            }
+        }
+        setObjective(solver, fixedCosts);
+    }
+
+    /**
+     * A nested relationship is read by one of its child tables or by a batched lookup, unless the parent's plan
+     * embeds it: c1 + l - x1q1 - x2q1 >= 0, where x1q1 and x2q1 do not embed it. A lookup needs the ids on the
+     * parent's row: l - x1q1 - x3q1 <= 0, where x1q1 and x3q1 have them. A parent found by id embeds nothing.
+     */
+    private void createNestedConstraints(MPSolver solver) {
+        for (LogicalPlan.NestedPlan nested : workload.nested) {
+            MPConstraint constraint = solver.makeConstraint(nested.parents == null ? 1 : 0, infinity);
+            for (QPlan plan : nested.plans) {
+                constraint.setCoefficient(getVariable(plan.index), 1);
+            }
+            if (nested.parents != null) {
+                for (QPlan parent : nested.parents) {
+                    if (!nested.isEmbeddedIn(parent.index)) {
+                        constraint.setCoefficient(getVariable(parent.index), -1);
+                    }
+                }
+            }
+            nestedConstraints.put(nested, constraint);
+
+            if (nested.ids == null || nested.parents == null && !nested.hasIds(null)) continue;
+            MPVariable lookup = makeVariable(solver, nested.toString() + "lookup");
+            constraint.setCoefficient(lookup, 1);
+            lookupVariables.put(nested, lookup);
+            if (nested.parents == null) continue;
+            MPConstraint ids = solver.makeConstraint(-infinity, 0);
+            ids.setCoefficient(lookup, 1);
+            for (QPlan parent : nested.parents) {
+                if (nested.hasIds(parent.index)) {
+                    ids.setCoefficient(getVariable(parent.index), -1);
+                }
+            }
+            idsConstraints.put(nested, ids);
+        }
+    }
+
+    /**
+     * Times a candidate is read per query: a child table once per parent row
+     */
+    private double getExecutions(Index index) {
+        LogicalPlan.NestedPlan nested = nestedIndices.get(index);
+        return nested == null ? 1 : nested.parentRows;
+    }
+
+    /**
+     * The modeled latency of each query must meet its SLA. Root selections run one after the other, so their
+     * latencies add up; lookups by id are a constant. Nested relationships are read after their parent, the child
+     * tables of every parent row at once. A cache hit replaces the table's latency with the cache's,
+     * weighted by its hit ratio, which depends on the rates of each profile:
+     *   L1 * x1q1 + L2 * x2q1 - hit(p) * (L1 - Lc) * h11 + ... <= latency_ms - lookups
+     */
+    private void createLatencyConstraints(MPSolver solver) {
+        for (Scenario profile : getProfiles()) {
+            latencyTerms.put(profile.name, new LinkedHashMap<>());
+            latencyConstraints.put(profile.name, new IdentityHashMap<>());
+        }
+        for (Query query : model.queries) {
+            Costs terms = new Costs();
+            int lookups = query.selections.size();
+            for (LogicalPlan.QueryPlan queryPlan : workload.plans) {
+                if (queryPlan.query != query) continue;
+                lookups--;
+                for (QPlan plan : queryPlan.plans) {
+                    terms.add(getVariable(plan.index), plan.index.getLatencyMs());
+                }
+            }
+            for (LogicalPlan.NestedPlan nested : workload.nested) {
+                if (nested.query != query) continue;
+                for (QPlan plan : nested.plans) {
+                    terms.add(getVariable(plan.index), plan.index.getLatencyMs());
+                }
+                if (lookupVariables.containsKey(nested)) {
+                    terms.add(lookupVariables.get(nested), nested.getLookupLatencyMs());
+                }
+            }
+            double constant = lookups * model.latency.getLookupMs();
+            latencyConstants.put(query, constant);
+            for (Scenario profile : getProfiles()) {
+                Costs profileTerms = new Costs();
+                profileTerms.addAll(terms, 1);
+                addCacheLatency(profileTerms, query, profile);
+                String name = model.profiles == null ? query.name : query.name + "_" + profile.name;
+                MPConstraint constraint = solver.makeConstraint(-infinity, profile.getLatency(query) - constant,
+                        name + "_latency");
+                for (Map.Entry<MPVariable, Double> term : profileTerms.terms.entrySet()) {
+                    constraint.setCoefficient(term.getKey(), term.getValue());
+                }
+                latencyTerms.get(profile.name).put(query, profileTerms);
+                latencyConstraints.get(profile.name).put(query, constraint);
+            }
+        }
+    }
+
+    private void addCacheLatency(Costs terms, Query query, Scenario profile) {
+        Latency latency = model.latency;
+        for (CacheCandidate cache : workload.caches) {
+            if (cache.query != query) continue;
+            double hitRatio = cache.getHitRatio(profile);
+            if (cache.plans == null) {
+                terms.add(getVariable(cache), -hitRatio * (latency.getLookupMs() - latency.cache_ms));
+                continue;
+            }
+            List<MPVariable> hits = hitVariables.get(cache);
+            for (int i = 0; i < cache.plans.size(); i++) {
+                terms.add(hits.get(i), -hitRatio * (cache.plans.get(i).index.getLatencyMs() - latency.cache_ms));
+            }
+        }
+    }
+
+    /**
+     * The scenario alone, or each declared workload profile with the scenario's overrides on top
+     */
+    private List<Scenario> getProfiles() {
+        if (model.profiles == null) return Collections.singletonList(scenario);
+        List<Scenario> profiles = new ArrayList<>();
+        for (Profile profile : model.profiles.profiles) {
+            profiles.add(scenario.withProfile(profile));
+        }
+        return profiles;
+    }
+
+    /**
+     * A single profile is minimized directly. Several profiles minimize either their weighted sum, or the worst
+     * profile's cost: z >= cost(p1), z >= cost(p2), ...
+     */
+    private void setObjective(MPSolver solver, Costs fixed) {
         MPObjective objective = solver.objective();
-        for (Index index : allIndices) {
-            objective.setCoefficient(index.variable,
-                    index.getRowScanCost() * index.query.sla.throughput_per_second
-            );
+        Costs total = new Costs();
+        total.addAll(fixed, 1);
+        if (model.profiles == null) {
+            total.addAll(profileCosts.values().iterator().next(), 1);
+        } else if (model.profiles.objective == ProfileObjective.WORST_CASE) {
+            MPVariable worstCase = solver.makeNumVar(-infinity, infinity, "worst_case");
+            for (Map.Entry<Scenario, Costs> entry : profileCosts.entrySet()) {
+                MPConstraint constraint = solver.makeConstraint(0, infinity, entry.getKey().name + "_worst_case");
+                worstCaseConstraints.put(entry.getKey().name, constraint);
+                constraint.setCoefficient(worstCase, 1);
+                for (Map.Entry<MPVariable, Double> term : entry.getValue().terms.entrySet()) {
+                    constraint.setCoefficient(term.getKey(), -term.getValue());
+                }
+            }
+            total.add(worstCase, 1);
+        } else {
+            for (Map.Entry<Scenario, Costs> entry : profileCosts.entrySet()) {
+                total.addAll(entry.getValue(), getWeight(entry.getKey()));
+            }
+        }
+        for (Map.Entry<MPVariable, Double> term : total.terms.entrySet()) {
+            objective.setCoefficient(term.getKey(), term.getValue());
         }
         objective.setMinimization();
+    }
+
+    private double getWeight(Scenario profile) {
+        for (Profile declared : model.profiles.profiles) {
+            if (profile.name.equals(declared.name)) return declared.weight;
+        }
+        return 1;
+    }
+
+    /**
+     * When a layout is already deployed, kept tables are free and each new table is charged
+     * a one-time backfill of every row of its entity.
+     */
+    private void setMigrationCost(Costs costs) {
+        if (model.deployed == null) return;
+        for (UniqueIndex index : uniqueIndices) {
+            if (isDeployed(index)) continue;
+            costs.add(getVariable(index), getBackfillCost(index));
+        }
+    }
+
+    private double getMigrationCost(UniqueIndex index) {
+        return model.deployed == null || isDeployed(index) ? 0 : getBackfillCost(index);
+    }
+
+    private void setStorageCost(Costs costs) {
+        for (UniqueIndex index : uniqueIndices) {
+            costs.add(getVariable(index), getStorageCost(index));
+        }
+    }
+
+    private double getStorageCost(UniqueIndex index) {
+        return model.costModel.getStoredBytes(index.getBytes()) * model.storage.byte_cost;
+    }
+
+    /**
+     * Tables are maintained by the mutations that change them, on every replica, at the store's price of a write.
+     * Rows of a time series expire as fast as they are inserted: each is deleted, unless its time bucket is dropped
+     * whole.
+     */
+    private void setMaintenanceCost(Costs costs, Scenario profile) {
+        for (UniqueIndex index : uniqueIndices) {
+            costs.add(getVariable(index), getMaintenanceCost(index, profile));
+        }
+    }
+
+    private double getMaintenanceCost(UniqueIndex index, Scenario profile) {
+        double rows = 0;
+        for (Mutation mutation : model.mutations) {
+            rows += getMaintenanceRows(index, mutation) * profile.getThroughput(mutation);
+            if (index.rootEntity.timeSeries != null && !index.timeBucketed && index.aggregate == null &&
+                    mutation.entity == index.rootEntity && mutation.mutationType == MutationType.INSERT) {
+                rows += profile.getThroughput(mutation);
+            }
+        }
+        return model.costModel.getWriteCost(rows, index.getRowBytes()) *
+                model.cluster.replication_factor / model.cluster.nodes;
+    }
+
+    private double getMaintenanceRows(UniqueIndex index, Mutation mutation) {
+        if (index.aggregate == null) {
+            Set<FieldPath> keys = new HashSet<>(index.partitionKey);
+            for (OrderBy orderBy : index.clusteringKey) {
+                keys.add(orderBy.path);
+            }
+            return getOwnRows(index, mutation) + getDenormalizedRows(keys, mutation, 2) +
+                    getDenormalizedRows(index.columns, mutation, 1) + getEmbeddedListRows(index.columns, mutation);
+        }
+        return getAggregateRows(index, mutation);
+    }
+
+    /**
+     * Inserting or deleting a row of the table's entity writes its row to the table
+     */
+    private static double getOwnRows(UniqueIndex index, Mutation mutation) {
+        return mutation.entity == index.rootEntity && mutation.mutationType != MutationType.UPDATE ? 1 : 0;
+    }
+
+    /**
+     * Updating a denormalized field rewrites every row embedding it. A key moves the row, a delete and an insert;
+     * a payload column is updated in place.
+     * e.g. an update to User.active rewrites each Todo of the user in a table keyed on user.active
+     */
+    private double getDenormalizedRows(Set<FieldPath> paths, Mutation mutation, int writesPerRow) {
+        if (mutation.mutationType != MutationType.UPDATE) return 0;
+        double rows = 0;
+        for (FieldPath path : paths) {
+            double fanOut = 1;
+            for (Entity.Field field : path.fields) {
+                if (field.getEntity() == mutation.entity && isSelected(mutation, field)) {
+                    rows += writesPerRow * fanOut;
+                    break;
+                }
+                if (field.typeDef.getEntity() != null && field.typeDef.multiplicity == TypeDef.Multiplicity.SINGLE) {
+                    fanOut *= getFanOut(field);
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * A list embedded in its parent's row, e.g. the todos of a user, rewrites that row whenever one of its elements
+     * is inserted or deleted
+     */
+    private static double getEmbeddedListRows(Set<FieldPath> paths, Mutation mutation) {
+        if (mutation.mutationType == MutationType.UPDATE) return 0;
+        Set<Entity.Field> lists = new HashSet<>();
+        for (FieldPath path : paths) {
+            for (Entity.Field field : path.fields) {
+                if (field.typeDef.multiplicity == TypeDef.Multiplicity.LIST && field.typeDef.getEntity() == mutation.entity) {
+                    lists.add(field);
+                }
+            }
+        }
+        return lists.size();
+    }
+
+    private static boolean isSelected(Mutation mutation, Entity.Field field) {
+        for (Selection selection : mutation.selectionSet.values()) {
+            if (selection.field == field) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Rows read and written to maintain a materialized aggregate for one mutation. Counters and sums are adjusted
+     * in place; min, max and top-N must re-read their group when a row leaves it.
+     */
+    private double getAggregateRows(UniqueIndex index, Mutation mutation) {
+        if (mutation.entity != index.rootEntity) return 0;
+        QueryDefinition.AggregateFunction function = index.aggregate.function;
+        boolean incremental = function == QueryDefinition.AggregateFunction.COUNT ||
+                function == QueryDefinition.AggregateFunction.SUM;
+        switch (mutation.mutationType) {
+            case INSERT:
+                return 1;
+            case DELETE:
+                return incremental ? 1 : 1 + getGroupRows(index);
+            default:
+                if (!touchesAggregate(index, mutation)) return 0;
+                return incremental ? 2 : 2 + getGroupRows(index);
+        }
+    }
+
+    private boolean touchesAggregate(UniqueIndex index, Mutation mutation) {
+        Set<Entity.Field> fields = new HashSet<>();
+        for (FieldPath path : index.partitionKey) {
+            fields.addAll(path.fields);
+        }
+        for (OrderBy orderBy : index.clusteringKey) {
+            fields.addAll(orderBy.path.fields);
+        }
+        if (index.aggregate.field != null) {
+            fields.addAll(index.aggregate.field.fields);
+        }
+        for (Selection selection : mutation.selectionSet.values()) {
+            if (fields.contains(selection.field)) return true;
+        }
+        return false;
+    }
+
+    private double getGroupRows(UniqueIndex index) {
+        Selectivity selectivity = index.rootEntity.selectivityMap.get(index.partitionKey);
+        return selectivity == null ? index.rootEntity.size.max : selectivity.distinct;
+    }
+
+    private MPVariable getVariable(Index index) {
+        return indexVariables.get(index);
+    }
 
-        solveAndPrint(solver);
+    private MPVariable getVariable(UniqueIndex index) {
+        return tableVariables.get(index);
+    }
+
+    private MPVariable getVariable(CacheCandidate cache) {
+        return cacheVariables.get(cache);
+    }
+
+    /**
+     * A cache saves its hit ratio of the cost of whichever table serves the query. The saving depends on both
+     * choices, so each cache+table pair gets a variable bounded by both: hit <= c1, hit <= x1q1
+     */
+    private void createCacheVariables(MPSolver solver) {
+        for (CacheCandidate cache : workload.caches) {
+            cacheVariables.put(cache, makeVariable(solver, cache.toString()));
+            if (cache.plans == null) continue;
+            List<MPVariable> hits = new ArrayList<>();
+            for (QPlan plan : cache.plans) {
+                MPVariable hit = makeVariable(solver, cache.toString() + plan.index.toString());
+                MPConstraint cacheConstraint = solver.makeConstraint(0, infinity);
+                cacheConstraint.setCoefficient(getVariable(cache), 1);
+                cacheConstraint.setCoefficient(hit, -1);
+                MPConstraint indexConstraint = solver.makeConstraint(0, infinity);
+                indexConstraint.setCoefficient(getVariable(plan.index), 1);
+                indexConstraint.setCoefficient(hit, -1);
+                hits.add(hit);
+            }
+            hitVariables.put(cache, hits);
+        }
+    }
+
+    private void setCacheCost(Costs costs, Scenario profile) {
+        for (CacheCandidate cache : workload.caches) {
+            double throughput = profile.getThroughput(cache.query);
+            double hitRatio = cache.getHitRatio(profile);
+            costs.add(getVariable(cache), cache.getInvalidationCost(profile, model.cluster));
+            if (cache.plans == null) {
+                /* Found by id: saves a single row lookup */
+                double lookupCost = model.costModel.getLookupCost(cache.selection.definition.sqlClause.rootEntity.getRowBytes());
+                costs.add(getVariable(cache), -hitRatio * throughput * lookupCost / model.cluster.nodes);
+                continue;
+            }
+            List<MPVariable> hits = hitVariables.get(cache);
+            for (int i = 0; i < cache.plans.size(); i++) {
+                costs.add(hits.get(i), -hitRatio * throughput * cache.plans.get(i).index.getNodeCost());
+            }
+        }
+    }
+
+    /**
+     * Added tables and caches share the memory budget: u1 * bytes + c1 * bytes + ... <= budget. Deployed tables are
+     * already paid for.
+     */
+    private void createMemoryConstraint(MPSolver solver) {
+        if (model.memory == null) return;
+        MPConstraint constraint = solver.makeConstraint(0, model.memory.budget_bytes, "memory_budget");
+        memoryConstraint = constraint;
+        for (UniqueIndex index : uniqueIndices) {
+            if (isDeployed(index)) continue;
+            constraint.setCoefficient(getVariable(index), index.getBytes());
+        }
+        for (CacheCandidate cache : workload.caches) {
+            constraint.setCoefficient(getVariable(cache), cache.bytes);
+        }
+    }
+
+    private boolean isDeployed(UniqueIndex index) {
+        return model.deployed != null && index.aggregate == null && index.buckets == 1 && !index.timeBucketed &&
+                model.deployed.contains(index.rootEntity, index.partitionKey, index.clusteringKey, index.columns);
+    }
+
+    private double getBackfillCost(UniqueIndex index) {
+        return model.deployed.backfill_cost * index.rootEntity.size.max;
     }
 
     private void createMutationCostConstraint(MPSolver solver) {
@@ -149,43 +777,48 @@ public class Optimizer {
             if (mutation.mutationType != MutationType.INSERT) continue;
             List<UniqueIndex> uniqueIndices = entityMap.get(mutation.entity);
             if (uniqueIndices.size() > 0) { //todo fix
-                MPConstraint constraint = solver.makeConstraint(1, mutation.sla.max_tables, mutation.name + "_max_tables");
+                MPConstraint constraint = solver.makeConstraint(1, scenario.getMaxTables(mutation),
+                        mutation.name + "_max_tables");
+                maxTablesConstraints.put(mutation, constraint);
                 for (UniqueIndex index : uniqueIndices) {
-                    constraint.setCoefficient(index.variable, 1);
+                    constraint.setCoefficient(getVariable(index), 1);
                 }
             }
         }
     }
 
-    public void setPathConstraintsForIndex(MPSolver solver, List<QPlan> plan) {
+    public MPConstraint setPathConstraintsForIndex(MPSolver solver, List<QPlan> plan) {
         //1 <= x1q2 + x2q2 <= inf
         MPConstraint constraint = solver.makeConstraint(1, infinity);
         for (QPlan child : plan) {
-            constraint.setCoefficient(child.index.variable, 1);
+            constraint.setCoefficient(getVariable(child.index), 1);
         }
+        return constraint;
     }
 
     public void printCostTree(String prefix, QPlan plan){
-        System.out.println(prefix + plan.index.toString() + ":" + plan.index.getRowScanCost());
+        System.out.println(prefix + plan.index.toString() + ":" + plan.index.getCost());
         if (plan.children == null) return;
         for (QPlan child : plan.children) {
             printCostTree(prefix + "  ", child);
         }
     }
 
-    public void solveAndPrint(MPSolver solver) {
-        System.out.println("Number of variables = " + solver.numVariables());
-        System.out.println("Number of constraints = " + solver.numConstraints());
-
-        String model = solver.exportModelAsLpFormat();
-        System.out.println(model);
+    public Solution solve(MPSolver solver) {
+        final MPSolver.ResultStatus resultStatus;
+        try (Metrics.Phase phase = metrics.phase("optimize.solve")) {
+            resultStatus = solver.solve();
+        }
+        metrics.set("ilp.solver_wall_ms", solver.wallTime());
 
-        final MPSolver.ResultStatus resultStatus = solver.solve();
+        Solution solution = new Solution(resultStatus.name());
+        solution.wallTimeMs = solver.wallTime();
+        solution.variables = solver.numVariables();
+        solution.constraints = solver.numConstraints();
 
         // Check that the problem has an optimal solution.
         if (resultStatus == MPSolver.ResultStatus.INFEASIBLE) {
-            System.err.println("The problem does not have an optimal solution!");
-            return;
+            return solution;
         }
 
         // Verify that the solution satisfies all constraints (when using solvers
@@ -193,22 +826,176 @@ public class Optimizer {
         if (!solver.verifySolution(/*tolerance=*/1e-7, /* log_errors= */ true)) {
             System.err.println("The solution returned by the solver violated the"
                     + " problem constraints by at least 1e-7");
-            return;
+            solution.status = "UNVERIFIED";
+            return solution;
         }
 
-        System.out.println("Problem solved in " + solver.wallTime() + " milliseconds");
+        solution.objective = solver.objective().value();
+        for (Query query : latencyConstants.keySet()) {
+            /* The slowest profile */
+            double predicted = 0;
+            for (Map<Query, Costs> terms : latencyTerms.values()) {
+                predicted = Math.max(predicted, terms.get(query).getValue() + latencyConstants.get(query));
+            }
+            solution.latencies.add(new Solution.QueryLatency(query.name, predicted, scenario.getLatency(query)));
+        }
+        if (model.profiles != null) {
+            for (Map.Entry<Scenario, Costs> entry : profileCosts.entrySet()) {
+                solution.profileCosts.put(entry.getKey().name, entry.getValue().getValue());
+            }
+        }
+        for (UniqueIndex index : uniqueIndices) {
+            if (getVariable(index).solutionValue() < 0.5) continue;
+            solution.tables.add(new Solution.Table(index.getName(), index.rootEntity.entityName,
+                    toStrings(index.partitionKey), index.buckets,
+                    index.timeBucketed ? index.rootEntity.timeSeries.bucket : null, toStrings(index.clusteringKey),
+                    toStrings(index.columns), index.aggregate == null ? null : index.aggregate.toString()));
+        }
+        for (Index index : allIndices) {
+            if (getVariable(index).solutionValue() < 0.5 || nestedIndices.containsKey(index)) continue;
+            solution.queries.add(new Solution.QueryChoice(index.query.name, uniqueIndexMap.get(index).getName(),
+                    index.fetch, index.getNodeCost()));
+        }
+        for (CacheCandidate cache : workload.caches) {
+            if (getVariable(cache).solutionValue() < 0.5) continue;
+            solution.caches.add(cache.toString());
+        }
+        solution.nested = getNestedChoices();
+        solution.explain = explain(solution.objective);
+        solution.churn = getChurn();
+        return solution;
+    }
 
-        // The objective value of the solution.
-        System.out.println("Optimal objective value = " + solver.objective().value());
+    /**
+     * The chosen plan of each query selection, and the cheapest alternatives by how much the objective would change
+     * if the query switched to them alone: the difference in read cost, plus the alternative's table if it is not
+     * selected already. Cache savings are not part of the deltas.
+     */
+    private List<Solution.Explain> explain(double objective) {
+        Map<MPVariable, Double> costs = getObjectiveCosts();
+        List<Solution.Explain> explains = new ArrayList<>();
+        for (LogicalPlan.QueryPlan queryPlan : workload.plans) {
+            QPlan chosen = null;
+            for (QPlan plan : queryPlan.plans) {
+                if (getVariable(plan.index).solutionValue() >= 0.5) {
+                    chosen = plan;
+                    break;
+                }
+            }
+            if (chosen == null) continue;
+            double chosenCost = costs.getOrDefault(getVariable(chosen.index), 0.0);
+            Solution.Explain explain = new Solution.Explain(queryPlan.query.name,
+                    getPlanCost(chosen.index, chosenCost, 0, false), objective == 0 ? 0 : chosenCost / objective);
 
-        for (Index index : allIndices) {
-            System.out.println(index.toString() + " = " + index.variable.solutionValue() + "    ");
+            List<Solution.PlanCost> alternatives = new ArrayList<>();
+            for (QPlan plan : queryPlan.plans) {
+                if (plan == chosen) continue;
+                double cost = costs.getOrDefault(getVariable(plan.index), 0.0);
+                MPVariable table = getVariable(uniqueIndexMap.get(plan.index));
+                boolean newTable = table.solutionValue() < 0.5;
+                double tableCost = newTable ? costs.getOrDefault(table, 0.0) : 0;
+                alternatives.add(getPlanCost(plan.index, cost, cost - chosenCost + tableCost, newTable));
+            }
+            alternatives.sort(Comparator.comparingDouble(a -> a.delta));
+            explain.alternatives.addAll(alternatives.subList(0, Math.min(explainAlternatives, alternatives.size())));
+
+            for (CacheCandidate cache : workload.caches) {
+                if (cache.plans == queryPlan.plans && getVariable(cache).solutionValue() >= 0.5) {
+                    explain.cacheHitRatio = cache.getHitRatio(scenario);
+                }
+            }
+            explains.add(explain);
+        }
+        return explains;
+    }
+
+    private Solution.PlanCost getPlanCost(Index index, double cost, double delta, boolean newTable) {
+        return new Solution.PlanCost(uniqueIndexMap.get(index).getName(), toStrings(index.partitionKey),
+                toStrings(index.clusteringKey), index.fetch, index.getFilterRows(), index.getSortRows(),
+                index.getFetchRows(), index.getRequests(), index.getLatencyMs(), cost, delta, newTable);
+    }
+
+    /**
+     * Each variable's coefficient in the objective. Under the worst-case objective, the coefficients of the
+     * profile that was the worst.
+     */
+    private Map<MPVariable, Double> getObjectiveCosts() {
+        Costs costs = new Costs();
+        costs.addAll(fixedCosts, 1);
+        if (model.profiles == null) {
+            costs.addAll(profileCosts.values().iterator().next(), 1);
+        } else if (model.profiles.objective == ProfileObjective.WORST_CASE) {
+            costs.addAll(Collections.max(profileCosts.values(), Comparator.comparingDouble(Costs::getValue)), 1);
+        } else {
+            for (Map.Entry<Scenario, Costs> entry : profileCosts.entrySet()) {
+                costs.addAll(entry.getValue(), getWeight(entry.getKey()));
+            }
         }
+        return costs.terms;
+    }
 
-        System.out.println("\nTables: ");
+    /**
+     * How each nested relationship is read: embedded in the chosen parent's table, from a child table, or looked up
+     */
+    private List<Solution.NestedChoice> getNestedChoices() {
+        List<Solution.NestedChoice> choices = new ArrayList<>();
+        for (LogicalPlan.NestedPlan nested : workload.nested) {
+            String relationship = nested.relationship.getEntity().entityName + "." + nested.relationship.name;
+            boolean embedded = nested.parents != null;
+            if (nested.parents != null) {
+                for (QPlan parent : nested.parents) {
+                    if (getVariable(parent.index).solutionValue() >= 0.5 && !nested.isEmbeddedIn(parent.index)) {
+                        embedded = false;
+                    }
+                }
+            }
+            if (embedded) {
+                choices.add(new Solution.NestedChoice(nested.query.name, relationship, "embedded", null, 0));
+                continue;
+            }
+            for (QPlan plan : nested.plans) {
+                if (getVariable(plan.index).solutionValue() < 0.5) continue;
+                choices.add(new Solution.NestedChoice(nested.query.name, relationship, "child_table",
+                        uniqueIndexMap.get(plan.index).getName(), plan.index.getNodeCost() * getExecutions(plan.index)));
+            }
+            MPVariable lookup = lookupVariables.get(nested);
+            if (lookup != null && lookup.solutionValue() >= 0.5) {
+                choices.add(new Solution.NestedChoice(nested.query.name, relationship, "lookup", null,
+                        nested.getLookupCost()));
+            }
+        }
+        return choices;
+    }
+
+    /**
+     * Difference between the deployed layout and the chosen layout
+     */
+    private Solution.Churn getChurn() {
+        if (model.deployed == null) return null;
+        Solution.Churn churn = new Solution.Churn();
+        Set<DeployedLayout.Table> kept = new HashSet<>();
         for (UniqueIndex index : uniqueIndices) {
-            System.out.println(index.toString() + " = " + index.variable.solutionValue());
+            if (getVariable(index).solutionValue() < 0.5) continue;
+            if (isDeployed(index)) {
+                kept.add(new DeployedLayout.Table(index.rootEntity, index.partitionKey, index.clusteringKey,
+                        index.columns));
+            } else {
+                churn.added.add(index.getName());
+                churn.backfillCost += getBackfillCost(index);
+            }
         }
+        for (DeployedLayout.Table table : model.deployed.tables) {
+            (kept.contains(table) ? churn.kept : churn.dropped).add(table.entity.entityName + table);
+        }
+        return churn;
+    }
+
+    private static List<String> toStrings(Collection<?> values) {
+        List<String> strings = new ArrayList<>();
+        for (Object value : values) {
+            strings.add(value.toString());
+        }
+        return strings;
     }
 
     private static List<Index> getAllIndicies(List<LogicalPlan.QueryPlan> queries) {
@@ -231,21 +1018,73 @@ public class Optimizer {
         }
     }
 
+    /**
+     * Linear cost terms, one coefficient per variable
+     */
+    private static class Costs {
+        private final Map<MPVariable, Double> terms = new LinkedHashMap<>();
+
+        void add(MPVariable variable, double cost) {
+            terms.merge(variable, cost, Double::sum);
+        }
+
+        void addAll(Costs costs, double weight) {
+            for (Map.Entry<MPVariable, Double> term : costs.terms.entrySet()) {
+                add(term.getKey(), term.getValue() * weight);
+            }
+        }
+
+        double getValue() {
+            double value = 0;
+            for (Map.Entry<MPVariable, Double> term : terms.entrySet()) {
+                value += term.getValue() * term.getKey().solutionValue();
+            }
+            return value;
+        }
+    }
+
     public static class UniqueIndex {
         private final Set<FieldPath> partitionKey;
         private final List<OrderBy> clusteringKey;
         private final Entity rootEntity;
-        public MPVariable variable;
+        private final QueryDefinition.Aggregate aggregate;
+        private final Set<FieldPath> columns;
+        private final int buckets;
+        private final boolean timeBucketed;
 
-        public UniqueIndex(Set<FieldPath> partitionKey, List<OrderBy> clusteringKey, Entity rootEntity) {
+        public UniqueIndex(Set<FieldPath> partitionKey, List<OrderBy> clusteringKey, Entity rootEntity,
+                           QueryDefinition.Aggregate aggregate, Set<FieldPath> columns, int buckets,
+                           boolean timeBucketed) {
             this.partitionKey = partitionKey;
             this.clusteringKey = clusteringKey;
             this.rootEntity = rootEntity;
+            this.aggregate = aggregate;
+            this.columns = columns;
+            this.buckets = buckets;
+            this.timeBucketed = timeBucketed;
+        }
+
+        /**
+         * Bytes of the keys and payload columns of every row
+         */
+        public double getBytes() {
+            return (double)rootEntity.size.max * getRowBytes();
+        }
+
+        public int getRowBytes() {
+            return Index.getRowBytes(partitionKey, clusteringKey, columns, aggregate);
+        }
+
+        public String getName() {
+            return rootEntity.entityName + this;
         }
 
         @Override
         public String toString() {
-            return "" + partitionKey + clusteringKey;
+            return "" + partitionKey + (timeBucketed ? "/" + rootEntity.timeSeries.bucket : "") +
+                    (buckets > 1 ? "*" + buckets : "") + clusteringKey +
+                    (aggregate != null ? aggregate.toString() : "") +
+                    (columns.isEmpty() ? "" : columns.toString());
         }
     }
 }
\ No newline at end of file
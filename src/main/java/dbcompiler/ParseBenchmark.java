@@ -0,0 +1,101 @@
+/*
+ *  Copyright (C) 2020 Daniel Henneberger
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dbcompiler;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+
+/**
+ * Compares full LL parsing with the SLL-first parse on a generated schema document.
+ *
+ * Usage: ParseBenchmark [entities] [iterations]
+ */
+public class ParseBenchmark {
+    public static void main(String[] args) {
+        int entities = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String document = generate(entities);
+        System.out.println("Document: " + document.split("\n").length + " lines, " + document.length() + " chars");
+
+        Compiler.runWithLargeStack(() -> {
+            /* SLL first so that LL does not warm the shared DFA for it */
+            report("sll+ll", document, iterations, false);
+            report("ll", document, iterations, true);
+            return null;
+        });
+    }
+
+    private static void report(String name, String document, int iterations, boolean ll) {
+        long start = System.nanoTime();
+        parse(document, ll);
+        double first = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parse(document, ll);
+        }
+        double warm = (System.nanoTime() - start) / 1e6 / iterations;
+        System.out.println(String.format("  %-8s first %10.2f ms   warm %10.2f ms", name, first, warm));
+    }
+
+    private static void parse(String document, boolean ll) {
+        CommonTokenStream tokenStream = new CommonTokenStream(new GraphQLLexer(CharStreams.fromString(document)));
+        if (ll) {
+            GraphQLParser parser = new GraphQLParser(tokenStream);
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            parser.document();
+        } else {
+            Compiler.parseDocument(tokenStream, new Metrics());
+        }
+    }
+
+    /**
+     * A schema of {@code entities} types, each related to the previous one, with a query definition, an operation
+     * and a mutation per type
+     */
+    public static String generate(int entities) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < entities; i++) {
+            sb.append("type E").append(i).append("\n@size(max: 100000)\n")
+                    .append("@selectivity(fields: [{ field: [\"status\"] distinct: 1000 prob: 0.01 }])\n{\n")
+                    .append("  name: String!\n  status: boolean @mutable\n  priority: int!\n");
+            if (i > 0) {
+                sb.append("  parent: E").append(i - 1).append("! @relation(field: \"children\")\n");
+            }
+            if (i < entities - 1) {
+                sb.append("  children: [E").append(i + 1).append("] @relation(field: \"parent\")\n");
+            }
+            sb.append("}\n\n");
+        }
+        sb.append("type Query\n{\n");
+        for (int i = 0; i < entities; i++) {
+            sb.append("  e").append(i).append("ByStatus: [E").append(i).append("]\n")
+                    .append("    @sql(where: \"status = $status\", order: [{field: \"priority\", direction:\"DESC\"}])\n");
+        }
+        sb.append("}\n\n");
+        for (int i = 0; i < entities; i++) {
+            sb.append("query GetE").append(i).append("ByStatus($status: boolean)\n")
+                    .append("@sla(throughput_per_second: 10, latency_ms: 100)\n{\n")
+                    .append("  e").append(i).append("ByStatus(status: $status) {\n    name\n    status\n  }\n}\n\n");
+        }
+        for (int i = 0; i < entities; i++) {
+            sb.append("fragment CreateE").append(i).append(" on E").append(i).append("\n   @insert\n{\n  name\n  status\n}\n\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright (C) 2020 Daniel Henneberger
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dbcompiler;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.*;
+
+import static dbcompiler.DomainModel.*;
+
+/**
+ * SLA overrides applied on top of the declared workload, e.g. GetTodosByUser at 500/s
+ */
+public class Scenario {
+    public static final Scenario BASELINE = new Scenario("baseline", ImmutableMap.of(), ImmutableMap.of());
+    public static final int UNBOUNDED_LATENCY = Integer.MAX_VALUE;
+
+    public final String name;
+    /* By query or mutation name */
+    public final Map<String, Integer> throughput;
+    /* By query name */
+    public final Map<String, Integer> latency;
+    /* The SLAs the overrides apply on top of, in place of those of the queries and mutations */
+    public final Declared declared;
+
+    public Scenario(String name, Map<String, Integer> throughput, Map<String, Integer> latency) {
+        this(name, throughput, latency, Declared.NONE);
+    }
+
+    public Scenario(String name, Map<String, Integer> throughput, Map<String, Integer> latency, Declared declared) {
+        this.name = name;
+        this.throughput = throughput;
+        this.latency = latency;
+        this.declared = declared;
+    }
+
+    /**
+     * SLAs declared by a version of the schema, by query or mutation name, so a workload enumerated for another
+     * version is solved with this version's SLAs
+     */
+    public static class Declared {
+        public static final Declared NONE = new Declared(ImmutableMap.of(), ImmutableMap.of(), ImmutableMap.of());
+
+        public final Map<String, Integer> throughput;
+        public final Map<String, Integer> latency;
+        public final Map<String, Integer> maxTables;
+
+        public Declared(Map<String, Integer> throughput, Map<String, Integer> latency, Map<String, Integer> maxTables) {
+            this.throughput = throughput;
+            this.latency = latency;
+            this.maxTables = maxTables;
+        }
+    }
+
+    /**
+     * The baseline of the model's declared SLAs, with no overrides
+     */
+    public static Scenario of(DomainModel model) {
+        Map<String, Integer> throughput = new LinkedHashMap<>();
+        Map<String, Integer> latency = new LinkedHashMap<>();
+        Map<String, Integer> maxTables = new LinkedHashMap<>();
+        for (Query query : model.queries) {
+            throughput.put(query.name, query.sla.throughput_per_second);
+            latency.put(query.name, query.sla.latency_ms);
+        }
+        for (Mutation mutation : model.mutations) {
+            throughput.put(mutation.name, mutation.sla.throughput_per_second);
+            maxTables.put(mutation.name, mutation.sla.max_tables);
+        }
+        return new Scenario(BASELINE.name, ImmutableMap.of(), ImmutableMap.of(),
+                new Declared(throughput, latency, maxTables));
+    }
+
+    /**
+     * No latency bound on any query, so the candidates enumerated do not depend on the latency SLAs
+     */
+    public static Scenario unboundedLatency(DomainModel model) {
+        Map<String, Integer> latency = new LinkedHashMap<>();
+        for (Query query : model.queries) {
+            latency.put(query.name, UNBOUNDED_LATENCY);
+        }
+        return new Scenario(BASELINE.name, ImmutableMap.of(), latency);
+    }
+
+    public int getThroughput(Query query) {
+        return throughput.getOrDefault(query.name,
+                declared.throughput.getOrDefault(query.name, query.sla.throughput_per_second));
+    }
+
+    public int getThroughput(Mutation mutation) {
+        return throughput.getOrDefault(mutation.name,
+                declared.throughput.getOrDefault(mutation.name, mutation.sla.throughput_per_second));
+    }
+
+    public int getLatency(Query query) {
+        return latency.getOrDefault(query.name, declared.latency.getOrDefault(query.name, query.sla.latency_ms));
+    }
+
+    public int getMaxTables(Mutation mutation) {
+        return declared.maxTables.getOrDefault(mutation.name, mutation.sla.max_tables);
+    }
+
+    /**
+     * The profile's rates with this scenario's overrides on top, both over the declared SLAs
+     */
+    public Scenario withProfile(Profile profile) {
+        Map<String, Integer> rates = new LinkedHashMap<>(profile.throughput);
+        rates.putAll(throughput);
+        return new Scenario(profile.name, rates, latency, declared);
+    }
+
+    /**
+     * Every combination of the axes' values
+     */
+    public static List<Scenario> grid(List<SweepAxis> axes) {
+        List<Scenario> scenarios = new ArrayList<>();
+        scenarios.add(new Scenario("", new LinkedHashMap<>(), new LinkedHashMap<>()));
+        for (SweepAxis axis : axes) {
+            List<Scenario> next = new ArrayList<>();
+            for (Scenario scenario : scenarios) {
+                for (int value : axis.values) {
+                    Map<String, Integer> throughput = new LinkedHashMap<>(scenario.throughput);
+                    Map<String, Integer> latency = new LinkedHashMap<>(scenario.latency);
+                    (axis.parameter.equals("latency_ms") ? latency : throughput).put(axis.name, value);
+                    String name = (scenario.name.isEmpty() ? "" : scenario.name + ",") +
+                            axis.name + "." + axis.parameter + "=" + value;
+                    next.add(new Scenario(name, throughput, latency));
+                }
+            }
+            scenarios = next;
+        }
+        return scenarios;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ *  Copyright (C) 2020 Daniel Henneberger
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dbcompiler;
+
+import lombok.AllArgsConstructor;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The chosen layout: selected tables, the table serving each query, selected caches and the churn against the
+ * deployed layout.
+ */
+public class Solution {
+    public String status;
+    public double objective;
+    public long wallTimeMs;
+    public int variables;
+    public int constraints;
+    public List<Table> tables = new ArrayList<>();
+    public List<QueryChoice> queries = new ArrayList<>();
+    /* How each relationship nested in a query is read */
+    public List<NestedChoice> nested = new ArrayList<>();
+    public List<String> caches = new ArrayList<>();
+    public List<QueryLatency> latencies = new ArrayList<>();
+    /* The plan of each query selection served by a table, and its runner-ups */
+    public List<Explain> explain = new ArrayList<>();
+    /* null without a deployed layout */
+    public Churn churn;
+    /* Rate dependent cost of the layout under each workload profile */
+    public Map<String, Double> profileCosts = new LinkedHashMap<>();
+
+    public Solution(String status) {
+        this.status = status;
+    }
+
+    public boolean isSolved() {
+        return status.equals("OPTIMAL") || status.equals("FEASIBLE");
+    }
+
+    @AllArgsConstructor
+    public static class Table {
+        public String name;
+        public String entity;
+        public List<String> partitionKey;
+        /* Buckets of a split partition key, 1 when not split */
+        public int buckets;
+        /* hour, day or week for a partition bucketed by time, otherwise null */
+        public String timeBucket;
+        public List<String> clusteringKey;
+        public List<String> columns;
+        public String aggregate;
+    }
+
+    @AllArgsConstructor
+    public static class QueryChoice {
+        public String query;
+        public String table;
+        public boolean fetch;
+        public double cost;
+    }
+
+    /**
+     * A nested relationship read "embedded" in its parent's table, from a "child_table", or by a batched "lookup"
+     */
+    @AllArgsConstructor
+    public static class NestedChoice {
+        public String query;
+        public String relationship;
+        public String strategy;
+        /* The child table, otherwise null */
+        public String table;
+        public double cost;
+    }
+
+    public static class QueryLatency {
+        public String query;
+        public double predictedMs;
+        public double slaMs;
+
+        public QueryLatency(String query, double predictedMs, double slaMs) {
+            this.query = query;
+            this.predictedMs = predictedMs;
+            this.slaMs = slaMs;
+        }
+
+        public double getSlackMs() {
+            return slaMs - predictedMs;
+        }
+    }
+
+    public static class Explain {
+        public String query;
+        public PlanCost chosen;
+        /* Share of the objective spent on this query's reads */
+        public double share;
+        /* Rejected plans, cheapest first */
+        public List<PlanCost> alternatives = new ArrayList<>();
+        /* Hit ratio of a selected cache in front of the table, 0 without */
+        public double cacheHitRatio;
+
+        public Explain(String query, PlanCost chosen, double share) {
+            this.query = query;
+            this.chosen = chosen;
+            this.share = share;
+        }
+    }
+
+    /**
+     * One candidate plan: what it reads per execution and what it adds to the objective
+     */
+    @AllArgsConstructor
+    public static class PlanCost {
+        public String table;
+        public List<String> partitionKey;
+        public List<String> clusteringKey;
+        public boolean fetch;
+        public double filterRows;
+        public double sortRows;
+        public double fetchRows;
+        public int requests;
+        public double latencyMs;
+        /* The query's reads on this table, at the workload's rates */
+        public double cost;
+        /* Objective change if the query used this plan instead, including a table not yet selected */
+        public double delta;
+        /* Needs a table the layout does not have. A negative delta means constraints such as max_tables rule it out. */
+        public boolean newTable;
+
+        /**
+         * Whether finding the page or sorting it dominates the rows scanned
+         */
+        public String getBound() {
+            return sortRows > filterRows ? "sort" : "filter";
+        }
+    }
+
+    public static class Churn {
+        public List<String> added = new ArrayList<>();
+        public List<String> dropped = new ArrayList<>();
+        public List<String> kept = new ArrayList<>();
+        public double backfillCost;
+    }
+
+    public void print() {
+        System.out.println("Number of variables = " + variables);
+        System.out.println("Number of constraints = " + constraints);
+        System.out.println("Status = " + status);
+        if (!isSolved()) return;
+        System.out.println("Problem solved in " + wallTimeMs + " milliseconds");
+        System.out.println("Optimal objective value = " + objective);
+
+        System.out.println("\nTables: ");
+        for (Table table : tables) {
+            System.out.println("  " + table.name + (table.columns.isEmpty() ? "" : " columns=" + table.columns));
+        }
+        System.out.println("\nQueries: ");
+        for (QueryChoice choice : queries) {
+            System.out.println("  " + choice.query + " -> " + choice.table + (choice.fetch ? " +fetch" : "") +
+                    " cost=" + choice.cost);
+        }
+        if (!nested.isEmpty()) {
+            System.out.println("\nNested: ");
+            for (NestedChoice choice : nested) {
+                System.out.println("  " + choice.query + " " + choice.relationship + " -> " + choice.strategy +
+                        (choice.table != null ? " " + choice.table : "") + " cost=" + choice.cost);
+            }
+        }
+        System.out.println("\nLatency: ");
+        for (QueryLatency latency : latencies) {
+            System.out.println(String.format("  %-32s %10.2f ms of %8.0f ms, slack %10.2f ms", latency.query,
+                    latency.predictedMs, latency.slaMs, latency.getSlackMs()));
+        }
+        if (!profileCosts.isEmpty()) {
+            System.out.println("\nProfiles: ");
+            for (Map.Entry<String, Double> profile : profileCosts.entrySet()) {
+                System.out.println("  " + profile.getKey() + " cost=" + profile.getValue());
+            }
+        }
+        if (!caches.isEmpty()) {
+            System.out.println("\nCaches: ");
+            for (String cache : caches) {
+                System.out.println("  " + cache);
+            }
+        }
+        if (churn != null) {
+            System.out.println("\nMigration: ");
+            for (String table : churn.kept) {
+                System.out.println("  keep " + table);
+            }
+            for (String table : churn.dropped) {
+                System.out.println("  drop " + table);
+            }
+            for (String table : churn.added) {
+                System.out.println("  add  " + table);
+            }
+            System.out.println("Churn: " + churn.added.size() + " added, " + churn.dropped.size() + " dropped, " +
+                    churn.kept.size() + " kept, backfill cost " + churn.backfillCost);
+        }
+    }
+
+    /**
+     * Per query: the chosen table and its keys, rows filtered, sorted and fetched, its share of the objective and
+     * the cheapest rejected plans
+     */
+    public void printExplain() {
+        System.out.println("\nExplain: ");
+        for (Explain explain : this.explain) {
+            PlanCost chosen = explain.chosen;
+            System.out.println("  " + explain.query + " -> " + chosen.table + (chosen.fetch ? " +fetch" : ""));
+            System.out.println("      partition " + chosen.partitionKey + " clustering " + chosen.clusteringKey);
+            System.out.println(String.format("      rows: filter %.0f, sort %.0f, fetch %.0f (%s bound), %d requests, " +
+                    "%.2f ms", chosen.filterRows, chosen.sortRows, chosen.fetchRows, chosen.getBound(), chosen.requests,
+                    chosen.latencyMs));
+            System.out.println(String.format("      cost %.1f, %.1f%% of objective%s", chosen.cost, explain.share * 100,
+                    explain.cacheHitRatio > 0 ? String.format(", cached at %.0f%% hits", explain.cacheHitRatio * 100) : ""));
+            for (PlanCost alternative : explain.alternatives) {
+                System.out.println(String.format("      %+14.1f  %s%s  filter %.0f, sort %.0f, %.2f ms%s",
+                        alternative.delta, alternative.table, alternative.fetch ? " +fetch" : "",
+                        alternative.filterRows, alternative.sortRows, alternative.latencyMs,
+                        alternative.newTable ? ", new table" : ""));
+            }
+        }
+    }
+
+    public void writeJson(JsonWriter json) {
+        json.beginObject();
+        json.name("status").value(status);
+        json.name("objective").value(objective);
+        json.name("wall_ms").value(wallTimeMs);
+        json.name("variables").value(variables);
+        json.name("constraints").value(constraints);
+        json.name("tables").beginArray();
+        for (Table table : tables) {
+            json.beginObject();
+            json.name("name").value(table.name);
+            json.name("entity").value(table.entity);
+            writeList(json.name("partition_key"), table.partitionKey);
+            json.name("buckets").value(table.buckets);
+            if (table.timeBucket != null) {
+                json.name("time_bucket").value(table.timeBucket);
+            }
+            writeList(json.name("clustering_key"), table.clusteringKey);
+            writeList(json.name("columns"), table.columns);
+            if (table.aggregate != null) {
+                json.name("aggregate").value(table.aggregate);
+            }
+            json.endObject();
+        }
+        json.endArray();
+        json.name("queries").beginArray();
+        for (QueryChoice choice : queries) {
+            json.beginObject()
+                    .name("query").value(choice.query)
+                    .name("table").value(choice.table)
+                    .name("fetch").value(choice.fetch)
+                    .name("cost").value(choice.cost)
+                    .endObject();
+        }
+        json.endArray();
+        json.name("nested").beginArray();
+        for (NestedChoice choice : nested) {
+            json.beginObject()
+                    .name("query").value(choice.query)
+                    .name("relationship").value(choice.relationship)
+                    .name("strategy").value(choice.strategy);
+            if (choice.table != null) {
+                json.name("table").value(choice.table);
+            }
+            json.name("cost").value(choice.cost).endObject();
+        }
+        json.endArray();
+        writeList(json.name("caches"), caches);
+        json.name("latency").beginArray();
+        for (QueryLatency latency : latencies) {
+            json.beginObject()
+                    .name("query").value(latency.query)
+                    .name("predicted_ms").value(latency.predictedMs)
+                    .name("sla_ms").value(latency.slaMs)
+                    .name("slack_ms").value(latency.getSlackMs())
+                    .endObject();
+        }
+        json.endArray();
+        json.name("explain").beginArray();
+        for (Explain explain : this.explain) {
+            json.beginObject();
+            json.name("query").value(explain.query);
+            json.name("share").value(explain.share);
+            json.name("cache_hit_ratio").value(explain.cacheHitRatio);
+            json.name("chosen");
+            writePlanCost(json, explain.chosen);
+            json.name("alternatives").beginArray();
+            for (PlanCost alternative : explain.alternatives) {
+                writePlanCost(json, alternative);
+            }
+            json.endArray();
+            json.endObject();
+        }
+        json.endArray();
+        if (!profileCosts.isEmpty()) {
+            json.name("profiles").beginObject();
+            for (Map.Entry<String, Double> profile : profileCosts.entrySet()) {
+                json.name(profile.getKey()).value(profile.getValue());
+            }
+            json.endObject();
+        }
+        if (churn != null) {
+            json.name("churn").beginObject();
+            writeList(json.name("added"), churn.added);
+            writeList(json.name("dropped"), churn.dropped);
+            writeList(json.name("kept"), churn.kept);
+            json.name("backfill_cost").value(churn.backfillCost);
+            json.endObject();
+        }
+        json.endObject();
+    }
+
+    private static void writePlanCost(JsonWriter json, PlanCost plan) {
+        json.beginObject();
+        json.name("table").value(plan.table);
+        writeList(json.name("partition_key"), plan.partitionKey);
+        writeList(json.name("clustering_key"), plan.clusteringKey);
+        json.name("fetch").value(plan.fetch)
+                .name("filter_rows").value(plan.filterRows)
+                .name("sort_rows").value(plan.sortRows)
+                .name("fetch_rows").value(plan.fetchRows)
+                .name("bound").value(plan.getBound())
+                .name("requests").value(plan.requests)
+                .name("latency_ms").value(plan.latencyMs)
+                .name("cost").value(plan.cost)
+                .name("delta").value(plan.delta)
+                .name("new_table").value(plan.newTable);
+        json.endObject();
+    }
+
+    private static void writeList(JsonWriter json, List<String> values) {
+        json.beginArray();
+        for (String value : values) {
+            json.value(value);
+        }
+        json.endArray();
+    }
+
+    public void writeJson(String file) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writeJson(new JsonWriter(writer));
+        }
+    }
+
+    public String toJson() {
+        StringWriter writer = new StringWriter();
+        writeJson(new JsonWriter(writer));
+        return writer.toString();
+    }
+}
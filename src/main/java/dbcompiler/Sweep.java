@@ -0,0 +1,160 @@
+/*
+ *  Copyright (C) 2020 Daniel Henneberger
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package dbcompiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Solves the baseline and every scenario of the model's \@sweep grid in parallel. Candidates are enumerated once,
+ * against the loosest latency of any scenario, and shared by all solves.
+ */
+public class Sweep {
+    private final DomainModel model;
+    private final Metrics metrics;
+    private final int threads;
+
+    public Sweep(DomainModel model, Metrics metrics, int threads) {
+        this.model = model;
+        this.metrics = metrics;
+        this.threads = threads;
+    }
+
+    public List<Result> run() {
+        List<Scenario> scenarios = new ArrayList<>();
+        scenarios.add(Scenario.BASELINE);
+        if (!model.sweep.isEmpty()) {
+            scenarios.addAll(Scenario.grid(model.sweep));
+        }
+        metrics.set("sweep.scenarios", scenarios.size());
+
+        LogicalPlan.Workload workload;
+        try (Metrics.Phase phase = metrics.phase("search")) {
+            workload = new LogicalPlan(model, metrics).search(scenarios);
+        }
+
+        List<Result> results = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (Metrics.Phase phase = metrics.phase("sweep.solve")) {
+            List<Future<Solution>> solutions = new ArrayList<>();
+            for (Scenario scenario : scenarios) {
+                solutions.add(executor.submit(phase.onWorker(() ->
+                        new Optimizer(workload, model, new Metrics(), scenario).findBestPlan())));
+            }
+            for (int i = 0; i < scenarios.size(); i++) {
+                results.add(new Result(scenarios.get(i), solutions.get(i).get()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        metrics.set("sweep.layouts", results.stream()
+                .filter(r -> r.solution.isSolved())
+                .map(Result::getLayout)
+                .distinct()
+                .count());
+        return results;
+    }
+
+    public static class Result {
+        public final Scenario scenario;
+        public final Solution solution;
+
+        public Result(Scenario scenario, Solution solution) {
+            this.scenario = scenario;
+            this.solution = solution;
+        }
+
+        /**
+         * The chosen tables, or empty when unsolved
+         */
+        public Set<String> getLayout() {
+            Set<String> layout = new TreeSet<>();
+            for (Solution.Table table : solution.tables) {
+                layout.add(table.name);
+            }
+            return layout;
+        }
+    }
+
+    /**
+     * One line per scenario with its layout, and the tables added and dropped wherever it differs from the baseline
+     */
+    public static void print(List<Result> results) {
+        List<Set<String>> layouts = new ArrayList<>();
+        Set<String> baseline = results.get(0).getLayout();
+        System.out.println("\nSweep: ");
+        for (Result result : results) {
+            if (!result.solution.isSolved()) {
+                System.out.println(String.format("  %-8s %-10s %14s  %s", "-", result.solution.status, "",
+                        result.scenario.name));
+                continue;
+            }
+            Set<String> layout = result.getLayout();
+            if (!layouts.contains(layout)) {
+                layouts.add(layout);
+            }
+            System.out.println(String.format("  layout %-2d %-10s %14.1f  %s", layouts.indexOf(layout),
+                    result.solution.status, result.solution.objective, result.scenario.name));
+            if (layout.equals(baseline)) continue;
+            for (String table : layout) {
+                if (!baseline.contains(table)) System.out.println("      + " + table);
+            }
+            for (String table : baseline) {
+                if (!layout.contains(table)) System.out.println("      - " + table);
+            }
+        }
+        System.out.println("\nLayouts: ");
+        for (int i = 0; i < layouts.size(); i++) {
+            System.out.println("  " + i + ": " + layouts.get(i));
+        }
+    }
+
+    public static void writeJson(List<Result> results, String file) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            JsonWriter json = new JsonWriter(writer);
+            json.beginArray();
+            for (Result result : results) {
+                json.beginObject();
+                json.name("scenario").value(result.scenario.name);
+                json.name("throughput").beginObject();
+                for (Map.Entry<String, Integer> entry : result.scenario.throughput.entrySet()) {
+                    json.name(entry.getKey()).value(entry.getValue());
+                }
+                json.endObject();
+                json.name("latency_ms").beginObject();
+                for (Map.Entry<String, Integer> entry : result.scenario.latency.entrySet()) {
+                    json.name(entry.getKey()).value(entry.getValue());
+                }
+                json.endObject();
+                json.name("solution");
+                result.solution.writeJson(json);
+                json.endObject();
+            }
+            json.endArray();
+        }
+    }
+}